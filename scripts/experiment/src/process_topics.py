@@ -5,7 +5,8 @@ import matplotlib.pyplot as plt
 def _get_topic_files_map(test_dir,num_topics):
   topic_files_map={}
   for f in os.listdir(test_dir):
-    if(os.path.isfile(os.path.join(test_dir,f)) and f.startswith('t')):
+    #only csv latency logs: .hlog and .bin logs of other recording modes are skipped
+    if(os.path.isfile(os.path.join(test_dir,f)) and f.startswith('t') and f.endswith('.csv')):
       topic=f.partition('_')[0]
       if topic in topic_files_map:
         topic_files_map[topic].append(test_dir+'/'+f)
@@ -18,7 +19,7 @@ def process_topic_files(test_dir,num_topics):
   with open('%s/summary_topic.csv'%(test_dir),'w') as out:
     out.write(metadata.latency_summary_header)
     for topic,files in sorted(topic_files_map.items()):
-      data=[np.genfromtxt(f,dtype='int,int',delimiter=',',\
+      data=[np.genfromtxt(f,dtype='float,float',delimiter=',',\
         usecols=[4,5],skip_header=1)[metadata.initial_samples:] for f in files]
 
       lengths=[len(arr) for arr in data]
@@ -26,7 +27,7 @@ def process_topic_files(test_dir,num_topics):
 
       curated_data=[arr[:min_len] for arr in data]
 
-      arr=np.array(curated_data,dtype=np.dtype('int,int'))
+      arr=np.array(curated_data,dtype=np.dtype('float,float'))
       latencies=arr['f0']
       interarrival=arr['f1']
       min_interarrival=min([min(arr[np.nonzero(arr)]) for arr in interarrival])
@@ -66,7 +67,7 @@ def plot_latency_per_topic(test_dir,num_topics):
 def plot_per_subscriber_latency(test_dir):
   for i in os.listdir(test_dir):
     curr_file='%s/%s'%(test_dir,i)
-    if (os.path.isfile(curr_file) and i.startswith('t')):
+    if (os.path.isfile(curr_file) and i.startswith('t') and i.endswith('.csv')):
       latency=np.genfromtxt(curr_file,dtype=None,delimiter=',',\
         usecols=[4],skip_header=1)[metadata.initial_samples:]
       
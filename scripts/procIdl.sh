@@ -1,3 +1,4 @@
 rtiddsgen -language Java -d ./src/main/java -package com.rti.idl idls/RoutingServiceAdministration.idl
 rtiddsgen -language Java -d ./src/main/java -package com.rti.idl idls/RoutingServiceMonitoring.idl
 rtiddsgen -language Java -d ./src/main/java -package com.rti.idl.test idls/DataSample_64B.idl
+rtiddsgen -language Java -d ./src/main/java -package com.rti.idl.test idls/DataSample_64B_ns.idl
@@ -0,0 +1,16 @@
+#!/bin/bash
+
+if [ $# -ne 5 ]; then
+  echo 'usage:' $0 'domain_id manifest log_dir run_id zk_connector' 
+  exit 1
+fi
+
+domain_id=$1
+manifest=$2
+log_dir=$3
+run_id=$4
+zk_connector=$5
+
+mkdir -p ~/log/host
+
+( ( nohup java -cp ./pubsubCoord.jar edu.vanderbilt.kharesp.pubsubcoord.clients.ClientHost $domain_id $manifest $log_dir $run_id $zk_connector 1>~/log/host/host_"$(basename $manifest)".log 2>&1 ) & )
@@ -0,0 +1,87 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.rti.dds.infrastructure.DurabilityQosPolicyKind;
+import com.rti.dds.infrastructure.ReliabilityQosPolicyKind;
+import com.rti.dds.publication.builtin.PublicationBuiltinTopicData;
+
+// Compares bytes per znode and decode cost of the java serialization format
+// against BinaryZnodeCodec for routing broker topic sets and edge broker endpoint data.
+// Run with: ./gradlew jmh
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class ZnodeCodecBenchmark {
+
+	// Number of topics assigned to a routing broker
+	@Param({ "10", "100", "1000" })
+	public int topicCount;
+
+	private BinaryZnodeCodec codec = new BinaryZnodeCodec();
+
+	private byte[] javaTopicSet;
+	private byte[] binaryTopicSet;
+	private byte[] javaEndpoint;
+	private byte[] binaryEndpoint;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		HashSet<String> topics = new HashSet<String>();
+		for (int i = 0; i < topicCount; i++) {
+			topics.add("t" + i);
+		}
+		javaTopicSet = CuratorHelper.serialize(topics);
+		binaryTopicSet = codec.encodeTopicSet(topics);
+
+		PublicationBuiltinTopicData publication = new PublicationBuiltinTopicData();
+		publication.topic_name = "t1";
+		publication.type_name = "DataSample_64B";
+		publication.reliability.kind = ReliabilityQosPolicyKind.RELIABLE_RELIABILITY_QOS;
+		publication.durability.kind = DurabilityQosPolicyKind.TRANSIENT_LOCAL_DURABILITY_QOS;
+		javaEndpoint = CuratorHelper.serialize(publication);
+		binaryEndpoint = codec.encodeEndpoint(TopicEndpointData.fromPublication(publication));
+	}
+
+	@TearDown(Level.Trial)
+	public void report() {
+		System.out.println(String.format("\ntopic set (%d topics) bytes/znode: java=%d binary=%d",
+				topicCount, javaTopicSet.length, binaryTopicSet.length));
+		System.out.println(String.format("endpoint data bytes/znode: java=%d binary=%d",
+				javaEndpoint.length, binaryEndpoint.length));
+	}
+
+	@Benchmark
+	public HashSet<String> decodeTopicSetJava() throws Exception {
+		return codec.decodeTopicSet(javaTopicSet);
+	}
+
+	@Benchmark
+	public HashSet<String> decodeTopicSetBinary() throws Exception {
+		return codec.decodeTopicSet(binaryTopicSet);
+	}
+
+	@Benchmark
+	public TopicEndpointData decodeEndpointJava() throws Exception {
+		return codec.decodeEndpoint(javaEndpoint);
+	}
+
+	@Benchmark
+	public TopicEndpointData decodeEndpointBinary() throws Exception {
+		return codec.decodeEndpoint(binaryEndpoint);
+	}
+}
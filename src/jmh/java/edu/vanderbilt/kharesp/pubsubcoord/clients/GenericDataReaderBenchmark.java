@@ -0,0 +1,79 @@
+package edu.vanderbilt.kharesp.pubsubcoord.clients;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.rti.dds.subscription.SampleInfo;
+import com.rti.dds.subscription.SampleInfoSeq;
+import com.rti.dds.topic.TypeSupportImpl;
+import com.rti.dds.util.LoanableSequence;
+import com.rti.idl.test.DataSample_64B;
+import com.rti.idl.test.DataSample_64BTypeSupport;
+
+// Compares the per sample delivery cost of GenericDataReader's COPY and LOANED modes
+// for DataSample_64B: GenericDataReader.deliver(), which take() runs on each taken batch,
+// is passed a prepared batch of samples and calls a process() that reads the sample like
+// ClientSubscriber does. The middleware's take and return_loan are the same in both
+// modes and are left out.
+// Run with: ./gradlew jmh
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class GenericDataReaderBenchmark {
+	// Samples returned by one take()
+	private static final int BATCH = 32;
+
+	@Param({ "COPY", "LOANED" })
+	public GenericDataReader.DeliveryMode deliveryMode;
+
+	private GenericDataReader<DataSample_64B> reader;
+	private LoanableSequence dataSeq;
+	private SampleInfoSeq infoSeq;
+	// Blackhole of the running benchmark, read by process()
+	private Blackhole bh;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		TypeSupportImpl typeSupport = DataSample_64BTypeSupport.get_instance();
+		reader = new GenericDataReader<DataSample_64B>(typeSupport, deliveryMode) {
+			@Override
+			public void process(DataSample_64B sample, SampleInfo info) {
+				bh.consume(sample.sample_id);
+				bh.consume(sample.ts_milisec);
+			}
+		};
+		dataSeq = new LoanableSequence(typeSupport.get_type());
+		infoSeq = new SampleInfoSeq();
+		dataSeq.setMaximum(BATCH);
+		infoSeq.setMaximum(BATCH);
+		for (int i = 0; i < BATCH; i++) {
+			DataSample_64B sample = (DataSample_64B) typeSupport.create_data();
+			sample.sample_id = i;
+			sample.ts_milisec = System.currentTimeMillis();
+			dataSeq.add(sample);
+			SampleInfo info = new SampleInfo();
+			info.valid_data = true;
+			infoSeq.add(info);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void deliver(Blackhole bh) throws InterruptedException {
+		this.bh = bh;
+		reader.deliver(dataSeq, infoSeq);
+	}
+}
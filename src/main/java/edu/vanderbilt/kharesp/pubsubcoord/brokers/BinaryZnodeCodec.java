@@ -0,0 +1,232 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.rti.dds.publication.builtin.PublicationBuiltinTopicData;
+import com.rti.dds.subscription.builtin.SubscriptionBuiltinTopicData;
+
+// Versioned binary znode encoding:
+//   magic(1) version(1) kind(1) payload
+// topic set payload: varint count, count x (varint length, utf-8 bytes)
+// endpoint payload:  topic_name, type_name (as above), varint reliability, varint durability
+// load payload:      3 x float32 (input/output samples per sec, cpu %), varint topic count
+// Znodes written by older brokers with java serialization are still decoded, but older
+// brokers cannot decode this format: all brokers of a deployment are upgraded at once.
+public class BinaryZnodeCodec implements ZnodeCodec {
+	public static final byte MAGIC = 0x50;
+	public static final byte VERSION = 1;
+
+	private static final byte KIND_TOPIC_SET = 1;
+	private static final byte KIND_ENDPOINT = 2;
+	private static final byte KIND_LOAD = 3;
+
+	// First two bytes of a java serialization stream (STREAM_MAGIC)
+	private static final byte JAVA_MAGIC_0 = (byte) 0xAC;
+	private static final byte JAVA_MAGIC_1 = (byte) 0xED;
+
+	@Override
+	public byte[] encodeTopicSet(Set<String> topics) {
+		Writer w = new Writer(16 + topics.size() * 16);
+		w.header(KIND_TOPIC_SET);
+		w.varint(topics.size());
+		for (String topic : topics) {
+			w.string(topic);
+		}
+		return w.toByteArray();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public HashSet<String> decodeTopicSet(byte[] bytes) throws IOException {
+		if (isJavaSerialized(bytes)) {
+			return (HashSet<String>) deserializeLegacy(bytes);
+		}
+		Reader r = new Reader(bytes);
+		r.header(KIND_TOPIC_SET);
+		int count = r.varint();
+		HashSet<String> topics = new HashSet<String>(Math.max(16, (int) (count / .75f) + 1));
+		for (int i = 0; i < count; i++) {
+			topics.add(r.string());
+		}
+		return topics;
+	}
+
+	@Override
+	public byte[] encodeEndpoint(TopicEndpointData data) {
+		Writer w = new Writer(16 + data.topic_name.length() + data.type_name.length());
+		w.header(KIND_ENDPOINT);
+		w.string(data.topic_name);
+		w.string(data.type_name);
+		w.varint(data.reliability_kind);
+		w.varint(data.durability_kind);
+		return w.toByteArray();
+	}
+
+	@Override
+	public TopicEndpointData decodeEndpoint(byte[] bytes) throws IOException {
+		if (isJavaSerialized(bytes)) {
+			Object legacy = deserializeLegacy(bytes);
+			if (legacy instanceof PublicationBuiltinTopicData) {
+				return TopicEndpointData.fromPublication((PublicationBuiltinTopicData) legacy);
+			}
+			if (legacy instanceof SubscriptionBuiltinTopicData) {
+				return TopicEndpointData.fromSubscription((SubscriptionBuiltinTopicData) legacy);
+			}
+			throw new IOException("Unexpected legacy endpoint data:" + legacy.getClass().getName());
+		}
+		Reader r = new Reader(bytes);
+		r.header(KIND_ENDPOINT);
+		String topic_name = r.string();
+		String type_name = r.string();
+		int reliability_kind = r.varint();
+		int durability_kind = r.varint();
+		return new TopicEndpointData(topic_name, type_name, reliability_kind, durability_kind);
+	}
+
+	@Override
+	public byte[] encodeLoad(BrokerLoadData data) {
+		Writer w = new Writer(24);
+		w.header(KIND_LOAD);
+		w.float32(data.input_samples_per_s);
+		w.float32(data.output_samples_per_s);
+		w.float32(data.cpu_usage_percentage);
+		w.varint(data.topic_count);
+		return w.toByteArray();
+	}
+
+	@Override
+	public BrokerLoadData decodeLoad(byte[] bytes) throws IOException {
+		Reader r = new Reader(bytes);
+		r.header(KIND_LOAD);
+		float input_samples_per_s = r.float32();
+		float output_samples_per_s = r.float32();
+		float cpu_usage_percentage = r.float32();
+		int topic_count = r.varint();
+		return new BrokerLoadData(input_samples_per_s, output_samples_per_s, cpu_usage_percentage, topic_count);
+	}
+
+	private static boolean isJavaSerialized(byte[] bytes) {
+		return bytes.length >= 2 && bytes[0] == JAVA_MAGIC_0 && bytes[1] == JAVA_MAGIC_1;
+	}
+
+	private static Object deserializeLegacy(byte[] bytes) throws IOException {
+		try {
+			return CuratorHelper.deserialize(bytes);
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static final class Writer {
+		private byte[] buf;
+		private int pos;
+
+		Writer(int capacity) {
+			buf = new byte[capacity];
+		}
+
+		void header(byte kind) {
+			ensure(3);
+			buf[pos++] = MAGIC;
+			buf[pos++] = VERSION;
+			buf[pos++] = kind;
+		}
+
+		void varint(int value) {
+			ensure(5);
+			while ((value & ~0x7F) != 0) {
+				buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buf[pos++] = (byte) value;
+		}
+
+		void float32(float value) {
+			ensure(4);
+			int bits = Float.floatToIntBits(value);
+			buf[pos++] = (byte) (bits >>> 24);
+			buf[pos++] = (byte) (bits >>> 16);
+			buf[pos++] = (byte) (bits >>> 8);
+			buf[pos++] = (byte) bits;
+		}
+
+		void string(String s) {
+			byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+			varint(utf8.length);
+			ensure(utf8.length);
+			System.arraycopy(utf8, 0, buf, pos, utf8.length);
+			pos += utf8.length;
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buf, pos);
+		}
+
+		private void ensure(int n) {
+			if (pos + n > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+			}
+		}
+	}
+
+	private static final class Reader {
+		private final byte[] buf;
+		private int pos;
+
+		Reader(byte[] buf) {
+			this.buf = buf;
+		}
+
+		void header(byte kind) throws IOException {
+			if (buf.length < 3 || buf[0] != MAGIC) {
+				throw new IOException("Unrecognized znode data format");
+			}
+			if (buf[1] > VERSION) {
+				throw new IOException(String.format("Unsupported znode data version:%d", buf[1]));
+			}
+			if (buf[2] != kind) {
+				throw new IOException(String.format("Unexpected znode data kind:%d, expected:%d", buf[2], kind));
+			}
+			pos = 3;
+		}
+
+		int varint() throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				if (pos >= buf.length) {
+					throw new IOException("Truncated znode data");
+				}
+				byte b = buf[pos++];
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Malformed varint in znode data");
+		}
+
+		float float32() throws IOException {
+			if (pos + 4 > buf.length) {
+				throw new IOException("Truncated znode data");
+			}
+			int bits = ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16) | ((buf[pos + 2] & 0xFF) << 8)
+					| (buf[pos + 3] & 0xFF);
+			pos += 4;
+			return Float.intBitsToFloat(bits);
+		}
+
+		String string() throws IOException {
+			int length = varint();
+			if (length < 0 || pos + length > buf.length) {
+				throw new IOException("Truncated znode data");
+			}
+			String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+			pos += length;
+			return s;
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+// Rolling load aggregate that a routing broker publishes under /load/rb,
+// derived from its Routing Service's SessionStatusSet and RoutingServiceStatusSet
+public class BrokerLoadData {
+	// total samples/sec received by this broker's topic sessions
+	public float input_samples_per_s;
+	// total samples/sec sent out by this broker's topic sessions
+	public float output_samples_per_s;
+	// cpu usage of this broker's Routing Service process
+	public float cpu_usage_percentage;
+	// number of topics assigned to this broker when the aggregate was computed
+	public int topic_count;
+
+	public BrokerLoadData(float input_samples_per_s, float output_samples_per_s, float cpu_usage_percentage,
+			int topic_count) {
+		this.input_samples_per_s = input_samples_per_s;
+		this.output_samples_per_s = output_samples_per_s;
+		this.cpu_usage_percentage = cpu_usage_percentage;
+		this.topic_count = topic_count;
+	}
+}
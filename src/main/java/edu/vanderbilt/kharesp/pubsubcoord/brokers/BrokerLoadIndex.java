@@ -0,0 +1,229 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Leader's in-memory view of routing broker load. Kept up to date from
+// /routingBrokers and /load cache events and from the leader's own
+// assignments, so that the least loaded broker is found in O(log brokers)
+// without reading or decoding any znode.
+//
+// Without traffic awareness the load of a broker is its number of assigned
+// topics. With it, the load is the broker's projected utilization: measured
+// utilization from its last BrokerLoadData report, plus the average per-topic
+// utilization for each topic assigned since that report, plus a small fixed
+// cost per topic so that idle brokers are still balanced by topic count.
+// The reports lag behind migrations, so the per-topic share of a migrated topic
+// is moved from its source to its target until the reports have caught up.
+class BrokerLoadIndex {
+
+	static class BrokerLoad implements Comparable<BrokerLoad> {
+		final String rbAddress;
+		final HashSet<String> topics;
+		// version of the znode from which topics was obtained
+		final int version;
+		final double load;
+
+		BrokerLoad(String rbAddress, HashSet<String> topics, int version, double load) {
+			this.rbAddress = rbAddress;
+			this.topics = topics;
+			this.version = version;
+			this.load = load;
+		}
+
+		@Override
+		public int compareTo(BrokerLoad other) {
+			int cmp = Double.compare(load, other.load);
+			return cmp != 0 ? cmp : rbAddress.compareTo(other.rbAddress);
+		}
+	}
+
+	private final boolean trafficAware;
+	// samples/sec (input+output) that saturate a routing broker
+	private final double rateCapacity;
+	// utilization attributed to a topic regardless of its traffic
+	private final double topicCost;
+
+	private final HashMap<String, BrokerLoad> brokers = new HashMap<String, BrokerLoad>();
+	private final HashMap<String, BrokerLoadData> reports = new HashMap<String, BrokerLoadData>();
+	private final TreeSet<BrokerLoad> byLoad = new TreeSet<BrokerLoad>();
+	// utilization moved by recent migrations, not yet reflected in the reports
+	private final HashMap<String, Transfer> transfers = new HashMap<String, Transfer>();
+
+	private static class Transfer {
+		// utilization moved in (positive) or out (negative)
+		double load;
+		// topics moved in, which the projection from the last report must not count again
+		int topics;
+		// time in ms after which the reports are expected to show the migrations
+		long expires;
+	}
+
+	BrokerLoadIndex() {
+		this(false, 1, 1);
+	}
+
+	BrokerLoadIndex(boolean trafficAware, double rateCapacity, double topicCost) {
+		this.trafficAware = trafficAware;
+		this.rateCapacity = rateCapacity;
+		this.topicCost = topicCost;
+	}
+
+	// Records the topic set of a routing broker's znode at the given version.
+	// The index takes ownership of topics, which must not be modified afterwards.
+	// Updates older than what the index already holds are ignored.
+	synchronized boolean update(String rbAddress, HashSet<String> topics, int version) {
+		BrokerLoad current = brokers.get(rbAddress);
+		if (current != null) {
+			if (current.version > version) {
+				return false;
+			}
+			byLoad.remove(current);
+		}
+		put(rbAddress, topics, version);
+		return true;
+	}
+
+	// Records the latest load aggregate published by a routing broker
+	synchronized void updateReport(String rbAddress, BrokerLoadData report) {
+		reports.put(rbAddress, report);
+		reput(rbAddress);
+	}
+
+	// Drops the load aggregate of a routing broker and recomputes its load without it
+	synchronized void removeReport(String rbAddress) {
+		reports.remove(rbAddress);
+		reput(rbAddress);
+	}
+
+	synchronized void remove(String rbAddress) {
+		transfers.remove(rbAddress);
+		BrokerLoad current = brokers.remove(rbAddress);
+		if (current != null) {
+			byLoad.remove(current);
+		}
+	}
+
+	// Moves the per-topic utilization of source to target for a topic migrated between
+	// them, until the time expires. Called before the new topic sets are recorded.
+	synchronized void migrated(BrokerLoad source, BrokerLoad target, long expires) {
+		if (!trafficAware || source.topics.isEmpty()) {
+			return;
+		}
+		double share = Math.max(0, source.load / source.topics.size() - topicCost);
+		transfer(source.rbAddress, -share, 0, expires);
+		transfer(target.rbAddress, share, 1, expires);
+	}
+
+	// Drops the transfers that expired by now
+	synchronized void expireTransfers(long now) {
+		Iterator<Map.Entry<String, Transfer>> it = transfers.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Transfer> entry = it.next();
+			if (entry.getValue().expires > now) {
+				continue;
+			}
+			it.remove();
+			reput(entry.getKey());
+		}
+	}
+
+	// Returns the least loaded routing broker, or null if none is known
+	synchronized BrokerLoad leastLoaded() {
+		return byLoad.isEmpty() ? null : byLoad.first();
+	}
+
+	// Returns the most loaded routing broker, or null if none is known
+	synchronized BrokerLoad mostLoaded() {
+		return byLoad.isEmpty() ? null : byLoad.last();
+	}
+
+	// Returns the least loaded routing broker not in excluded, or null if none is left
+	synchronized BrokerLoad leastLoaded(Set<String> excluded) {
+		return first(byLoad.iterator(), excluded);
+	}
+
+	// Returns the most loaded routing broker not in excluded, or null if none is left
+	synchronized BrokerLoad mostLoaded(Set<String> excluded) {
+		return first(byLoad.descendingIterator(), excluded);
+	}
+
+	private static BrokerLoad first(Iterator<BrokerLoad> it, Set<String> excluded) {
+		while (it.hasNext()) {
+			BrokerLoad broker = it.next();
+			if (!excluded.contains(broker.rbAddress)) {
+				return broker;
+			}
+		}
+		return null;
+	}
+
+	// Returns the routing broker whose topic set contains topic, or null
+	synchronized BrokerLoad ownerOf(String topic) {
+		for (BrokerLoad broker : brokers.values()) {
+			if (broker.topics.contains(topic)) {
+				return broker;
+			}
+		}
+		return null;
+	}
+
+	synchronized BrokerLoad get(String rbAddress) {
+		return brokers.get(rbAddress);
+	}
+
+	synchronized int size() {
+		return brokers.size();
+	}
+
+	private void transfer(String rbAddress, double load, int topics, long expires) {
+		Transfer transfer = transfers.get(rbAddress);
+		if (transfer == null) {
+			transfer = new Transfer();
+			transfers.put(rbAddress, transfer);
+		}
+		transfer.load += load;
+		transfer.topics += topics;
+		transfer.expires = Math.max(transfer.expires, expires);
+		reput(rbAddress);
+	}
+
+	// Recomputes the load of a known routing broker
+	private void reput(String rbAddress) {
+		BrokerLoad current = brokers.get(rbAddress);
+		if (current != null) {
+			byLoad.remove(current);
+			put(rbAddress, current.topics, current.version);
+		}
+	}
+
+	private void put(String rbAddress, HashSet<String> topics, int version) {
+		BrokerLoad updated = new BrokerLoad(rbAddress, topics, version,
+				load(reports.get(rbAddress), transfers.get(rbAddress), topics.size()));
+		brokers.put(rbAddress, updated);
+		byLoad.add(updated);
+	}
+
+	private double load(BrokerLoadData report, Transfer transfer, int topic_count) {
+		if (!trafficAware) {
+			return topic_count;
+		}
+		double measured = 0, perTopic = 0, moved = 0;
+		int unreported = topic_count;
+		if (transfer != null) {
+			moved = transfer.load;
+			unreported -= transfer.topics;
+		}
+		if (report != null) {
+			measured = Math.max(report.cpu_usage_percentage / 100.0,
+					(report.input_samples_per_s + report.output_samples_per_s) / rateCapacity);
+			perTopic = report.topic_count > 0 ? measured / report.topic_count : 0;
+			unreported -= report.topic_count;
+		}
+		return Math.max(0, measured + moved) + Math.max(0, unreported) * perTopic + topic_count * topicCost;
+	}
+}
@@ -0,0 +1,171 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+
+import com.rti.dds.subscription.SampleInfo;
+import com.rti.dds.subscription.Subscriber;
+import com.rti.dds.topic.Topic;
+import com.rti.idl.RTI.RoutingService.Monitoring.RoutingServiceStatusSet;
+import com.rti.idl.RTI.RoutingService.Monitoring.RoutingServiceStatusSetTypeSupport;
+import com.rti.idl.RTI.RoutingService.Monitoring.SessionStatusSet;
+import com.rti.idl.RTI.RoutingService.Monitoring.SessionStatusSetTypeSupport;
+
+import edu.vanderbilt.kharesp.pubsubcoord.clients.DefaultParticipant;
+import edu.vanderbilt.kharesp.pubsubcoord.clients.GenericDataReader;
+
+// Subscribes to the monitoring data published by this routing broker's Routing Service
+// and periodically publishes a rolling aggregate of its load under /load/rb. The leader
+// uses these aggregates for traffic-aware topic placement.
+public class BrokerLoadReporter implements Runnable {
+	private static final int MONITORING_DOMAIN_ID = 56;
+	private static final String ROUTING_SERVICE_TOPIC = "rti/routing_service/monitoring/routing_service_status_set";
+	private static final String SESSION_TOPIC = "rti/routing_service/monitoring/session_status_set";
+
+	// Interval at which the load aggregate is written to ZK
+	private static final long REPORT_INTERVAL_MS = Long.getLong("pubsubcoord.load.report_interval_ms", 5000);
+	// Weight of the newest measurement in the exponentially weighted moving averages
+	private static final float EWMA_ALPHA = Float.parseFloat(System.getProperty("pubsubcoord.load.ewma_alpha", "0.3"));
+	// Session statistics not refreshed within this period belong to deleted sessions
+	private static final long SESSION_EXPIRY_MS = 3 * REPORT_INTERVAL_MS;
+
+	private Logger logger;
+	private CuratorFramework client;
+	private String rbAddress;
+	private String domainRouteName;
+	private String loadPath;
+
+	private DefaultParticipant participant;
+	private GenericDataReader<SessionStatusSet> session_statusSet_reader;
+	private GenericDataReader<RoutingServiceStatusSet> routingService_statusSet_reader;
+
+	// latest input/output samples per sec for each topic session of this broker's domain route
+	private HashMap<String, float[]> session_rates = new HashMap<String, float[]>();
+	private HashMap<String, Long> session_updated = new HashMap<String, Long>();
+	private float cpu_usage_percentage = -1;
+	private float input_samples_per_s = -1;
+	private float output_samples_per_s = -1;
+	private volatile int topic_count;
+
+	public BrokerLoadReporter(CuratorFramework client, String rbAddress, String domainRouteName) throws Exception {
+		logger = LogManager.getLogger(this.getClass().getSimpleName());
+		this.client = client;
+		this.rbAddress = rbAddress;
+		this.domainRouteName = domainRouteName;
+		loadPath = ZKPaths.makePath(CuratorHelper.LOAD_PATH, rbAddress);
+		initialize();
+	}
+
+	private void initialize() throws Exception {
+		participant = new DefaultParticipant(MONITORING_DOMAIN_ID);
+		participant.registerType(RoutingServiceStatusSetTypeSupport.get_instance());
+		participant.registerType(SessionStatusSetTypeSupport.get_instance());
+		Topic routingServiceStatusSet_topic = participant.create_topic(ROUTING_SERVICE_TOPIC,
+				RoutingServiceStatusSetTypeSupport.get_instance());
+		Topic sessionStatusSet_topic = participant.create_topic(SESSION_TOPIC,
+				SessionStatusSetTypeSupport.get_instance());
+		Subscriber subscriber = participant.get_default_subscriber();
+
+		routingService_statusSet_reader = new GenericDataReader<RoutingServiceStatusSet>(subscriber,
+				routingServiceStatusSet_topic, RoutingServiceStatusSetTypeSupport.get_instance()) {
+			@Override
+			public void process(RoutingServiceStatusSet sample, SampleInfo info) {
+				// The Routing Services of all hosts publish on the monitoring domain
+				if (!sample.name.equals(RoutingServiceAdministrator.ROUTING_SERVICE_NAME)) {
+					return;
+				}
+				synchronized (BrokerLoadReporter.this) {
+					cpu_usage_percentage = ewma(cpu_usage_percentage,
+							sample.cpu_usage_percentage.publication_period_metrics.mean);
+				}
+			}
+		};
+		session_statusSet_reader = new GenericDataReader<SessionStatusSet>(subscriber, sessionStatusSet_topic,
+				SessionStatusSetTypeSupport.get_instance()) {
+			@Override
+			public void process(SessionStatusSet sample, SampleInfo info) {
+				// Only topic sessions of this broker's domain route carry routed traffic
+				if (!sample.routing_service_name.equals(RoutingServiceAdministrator.ROUTING_SERVICE_NAME)
+						|| !sample.domain_route_name.equals(domainRouteName)) {
+					return;
+				}
+				synchronized (BrokerLoadReporter.this) {
+					session_rates.put(sample.name,
+							new float[] { sample.input_samples_per_s.publication_period_metrics.mean,
+									sample.output_samples_per_s.publication_period_metrics.mean });
+					session_updated.put(sample.name, System.currentTimeMillis());
+				}
+			}
+		};
+	}
+
+	// Number of topics currently assigned to this routing broker
+	public void setTopicCount(int topic_count) {
+		this.topic_count = topic_count;
+	}
+
+	@Override
+	public void run() {
+		logger.debug(String.format("Starting load reporter for RB:%s\n", rbAddress));
+		routingService_statusSet_reader.receive();
+		session_statusSet_reader.receive();
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Thread.sleep(REPORT_INTERVAL_MS);
+				publish(aggregate());
+			}
+		} catch (InterruptedException e) {
+			logger.debug(String.format("Load reporter for RB:%s interrupted\n", rbAddress));
+		} finally {
+			participant.shutdown();
+		}
+	}
+
+	private synchronized BrokerLoadData aggregate() {
+		long now = System.currentTimeMillis();
+		float input = 0, output = 0;
+		Iterator<Map.Entry<String, float[]>> it = session_rates.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, float[]> entry = it.next();
+			if (now - session_updated.get(entry.getKey()) > SESSION_EXPIRY_MS) {
+				session_updated.remove(entry.getKey());
+				it.remove();
+				continue;
+			}
+			input += entry.getValue()[0];
+			output += entry.getValue()[1];
+		}
+		input_samples_per_s = ewma(input_samples_per_s, input);
+		output_samples_per_s = ewma(output_samples_per_s, output);
+		return new BrokerLoadData(input_samples_per_s, output_samples_per_s, Math.max(0, cpu_usage_percentage),
+				topic_count);
+	}
+
+	private static float ewma(float average, float value) {
+		return average < 0 ? value : EWMA_ALPHA * value + (1 - EWMA_ALPHA) * average;
+	}
+
+	private void publish(BrokerLoadData load) {
+		try {
+			byte[] data = CuratorHelper.serializeLoad(load);
+			try {
+				client.setData().forPath(loadPath, data);
+			} catch (KeeperException.NoNodeException e) {
+				client.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL).forPath(loadPath, data);
+			}
+			logger.debug(String.format("RB:%s load in:%.1f out:%.1f samples/sec cpu:%.1f%% topics:%d\n", rbAddress,
+					load.input_samples_per_s, load.output_samples_per_s, load.cpu_usage_percentage,
+					load.topic_count));
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Properties;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+// Routing Service command strings for domain routes and topic sessions. The XML
+// templates are bundled with the classes and compiled once, with the QoS slots
+// bound from routing_qos.properties overlaid by the QoS profile file, so QoS can
+// be tuned by editing xml/routing_qos.properties (or the file named by
+// -Dpubsubcoord.qos.profile) without a rebuild.
+public class CommandTemplates {
+	private static final String QOS_PROFILE = System.getProperty("pubsubcoord.qos.profile",
+			"xml/routing_qos.properties");
+	// user_data of the endpoints created by topic routes; read back as "k" to
+	// recognize them during discovery
+	public static final String TOPIC_ROUTE_CODE = "107";
+
+	private static final Logger logger = LogManager.getLogger(CommandTemplates.class.getSimpleName());
+
+	// Topic sessions created by the brokers
+	public enum Session {
+		// on the routing broker, from the wan domain back to the wan domain
+		TOPIC("TopicSession", "TopicRoute", 1, "IMMEDIATE", "IMMEDIATE"),
+		// on the edge broker, from the local publishers to the wan domain
+		SUBSCRIPTION("SubscriptionSession", "SubscriptionRoute", 1, "ON_DOMAIN_MATCH", "ON_DOMAIN_AND_ROUTE_MATCH"),
+		// on the edge broker, from the wan domain to the local subscribers
+		PUBLICATION("PublicationSession", "PublicationRoute", 2, "IMMEDIATE", "IMMEDIATE");
+
+		private final HashMap<String, String> values = new HashMap<String, String>();
+		private XmlTemplate template;
+
+		Session(String sessionSuffix, String routeSuffix, int inputParticipant, String inputCreationMode,
+				String outputCreationMode) {
+			values.put("session_suffix", sessionSuffix);
+			values.put("route_suffix", routeSuffix);
+			values.put("input_participant", String.valueOf(inputParticipant));
+			values.put("input_creation_mode", inputCreationMode);
+			values.put("output_creation_mode", outputCreationMode);
+		}
+
+		// Name of the session for topic_name on domain route domainRouteName
+		public String sessionName(String domainRouteName, String topic_name) {
+			return domainRouteName + "::" + topic_name + values.get("session_suffix");
+		}
+	}
+
+	private static final XmlTemplate domainRoute;
+	private static final XmlTemplate lanParticipant;
+	private static final XmlTemplate wanParticipant;
+
+	static {
+		try {
+			Properties qos = loadQos();
+			qos.setProperty("route_code", TOPIC_ROUTE_CODE);
+			XmlTemplate topicSession = load("topic_session.xml").bind(qos);
+			for (Session session : Session.values()) {
+				session.template = checkSlots(topicSession.bind(session.values), "topic_name", "type_name");
+			}
+			domainRoute = checkSlots(load("domain_route.xml"), "name", "participant_1", "participant_2");
+			lanParticipant = checkSlots(load("participant_lan.xml").bind(qos), "domain_id");
+			wanParticipant = checkSlots(load("participant_wan.xml").bind(qos), "domain_id", "public_address",
+					"bind_port");
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to load Routing Service command templates", e);
+		}
+	}
+
+	public static String topicSession(Session session, String topic_name, String type_name) {
+		return command(session.template.render(topic_name, type_name));
+	}
+
+	public static String domainRoute(String name, String participant_1, String participant_2) {
+		return command(domainRoute.render(name, participant_1, participant_2));
+	}
+
+	// Domain route participant in local domain_id, using UDPv4
+	public static String lanParticipant(int domain_id) {
+		return lanParticipant.render(String.valueOf(domain_id));
+	}
+
+	// Domain route participant in wan domain_id, reachable over TCPv4 WAN at address:port
+	public static String wanParticipant(int domain_id, String address, String port) {
+		return wanParticipant.render(String.valueOf(domain_id), address + ":" + port, port);
+	}
+
+	private static String command(String xml) {
+		return "str://\"" + xml + "\"";
+	}
+
+	private static Properties loadQos() throws IOException {
+		Properties qos = new Properties();
+		InputStream defaults = CommandTemplates.class.getResourceAsStream("routing_qos.properties");
+		try {
+			qos.load(defaults);
+		} finally {
+			defaults.close();
+		}
+		File profile = new File(QOS_PROFILE);
+		if (profile.isFile()) {
+			logger.debug(String.format("Loading QoS profile:%s\n", profile.getPath()));
+			FileInputStream in = new FileInputStream(profile);
+			try {
+				qos.load(in);
+			} finally {
+				in.close();
+			}
+		} else {
+			logger.debug(String.format("QoS profile:%s not found, using default QoS\n", profile.getPath()));
+		}
+		return qos;
+	}
+
+	// Reads a template, dropping comments and the whitespace between tags
+	private static XmlTemplate load(String name) throws IOException {
+		InputStream in = CommandTemplates.class.getResourceAsStream(name);
+		if (in == null) {
+			throw new IOException("Template not found: " + name);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+		text = text.replaceAll("(?s)<!--.*?-->", "").replaceAll(">\\s+<", "><").trim();
+		return XmlTemplate.compile(text);
+	}
+
+	// Fails at startup if the QoS profile left slots unfilled
+	private static XmlTemplate checkSlots(XmlTemplate template, String... expected) {
+		if (!Arrays.equals(template.slotNames(), expected)) {
+			throw new IllegalStateException(String.format("Template slots %s do not match %s",
+					Arrays.toString(template.slotNames()), Arrays.toString(expected)));
+		}
+		return template;
+	}
+}
@@ -0,0 +1,88 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Consistent hash ring over routing broker addresses. Each broker is placed on
+// the ring at a number of virtual node positions; a topic is owned by the broker
+// at the first position at or after the topic's hash. When a broker joins or
+// leaves, only the topics in the ring segments it gains or loses (about 1/N of
+// all topics) change owner. Hashes are MD5 based, so every process computes the
+// same ring from the same set of brokers.
+public class ConsistentHashRing {
+	private final int virtualNodes;
+	private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+	private final Set<String> brokers = new HashSet<String>();
+	private final MessageDigest md5;
+
+	public ConsistentHashRing(int virtualNodes) {
+		this.virtualNodes = virtualNodes;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public synchronized boolean add(String rbAddress) {
+		if (!brokers.add(rbAddress)) {
+			return false;
+		}
+		for (int i = 0; i < virtualNodes; i++) {
+			ring.put(hash(rbAddress + "#" + i), rbAddress);
+		}
+		return true;
+	}
+
+	public synchronized boolean remove(String rbAddress) {
+		if (!brokers.remove(rbAddress)) {
+			return false;
+		}
+		for (int i = 0; i < virtualNodes; i++) {
+			ring.remove(hash(rbAddress + "#" + i));
+		}
+		return true;
+	}
+
+	// Replaces the ring's brokers with the given set. Returns true if membership changed.
+	public synchronized boolean retainOnly(Collection<String> rbAddresses) {
+		boolean changed = false;
+		for (String rb : new HashSet<String>(brokers)) {
+			if (!rbAddresses.contains(rb)) {
+				changed |= remove(rb);
+			}
+		}
+		for (String rb : rbAddresses) {
+			changed |= add(rb);
+		}
+		return changed;
+	}
+
+	// Returns the routing broker owning topic, or null if the ring is empty
+	public synchronized String owner(String topic) {
+		if (ring.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Long, String> entry = ring.ceilingEntry(hash(topic));
+		return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+	}
+
+	public synchronized int size() {
+		return brokers.size();
+	}
+
+	private long hash(String key) {
+		byte[] digest = md5.digest(key.getBytes(StandardCharsets.UTF_8));
+		long h = 0;
+		for (int i = 0; i < 8; i++) {
+			h = (h << 8) | (digest[i] & 0xFF);
+		}
+		return h;
+	}
+}
@@ -5,13 +5,49 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.HashSet;
+import java.util.Set;
 
 public class CuratorHelper {
 	public static final String ROUTING_BROKER_PATH = "/routingBrokers";
     public static final String LEADER_PATH = "/leader";
     public static final String TOPIC_PATH = "/topics";
+    public static final String LOAD_PATH = "/load";
+    // /routed/t/rb exists while routing broker rb routes topic t through a topic session
+    public static final String ROUTED_PATH = "/routed";
 
-    // Serialize object
+    // Codec for topic sets and endpoint data stored in znodes
+    private static ZnodeCodec codec = new BinaryZnodeCodec();
+
+    public static void setCodec(ZnodeCodec znodeCodec) {
+        codec = znodeCodec;
+    }
+
+    public static byte[] serializeTopicSet(Set<String> topics) throws IOException {
+        return codec.encodeTopicSet(topics);
+    }
+
+    public static HashSet<String> deserializeTopicSet(byte[] bytes) throws IOException {
+        return codec.decodeTopicSet(bytes);
+    }
+
+    public static byte[] serializeEndpoint(TopicEndpointData data) throws IOException {
+        return codec.encodeEndpoint(data);
+    }
+
+    public static TopicEndpointData deserializeEndpoint(byte[] bytes) throws IOException {
+        return codec.decodeEndpoint(bytes);
+    }
+
+    public static byte[] serializeLoad(BrokerLoadData data) throws IOException {
+        return codec.encodeLoad(data);
+    }
+
+    public static BrokerLoadData deserializeLoad(byte[] bytes) throws IOException {
+        return codec.decodeLoad(bytes);
+    }
+
+    // Serialize object (java serialization, pre-codec znode format)
     public static byte[] serialize(Object obj) throws IOException {
         ByteArrayOutputStream b = new ByteArrayOutputStream();
         ObjectOutputStream o = new ObjectOutputStream(b);
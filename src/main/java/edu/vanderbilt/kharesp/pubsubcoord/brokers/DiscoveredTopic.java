@@ -0,0 +1,59 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+import org.apache.curator.framework.recipes.cache.NodeCache;
+
+// A topic with endpoints discovered by an edge broker. There is one instance per
+// topic name, interned by DiscoveryEngine, so the discovery listeners and the
+// discovery queue pass the instance around instead of looking topics up by name.
+// Fields are only read and changed holding the topic's discovery lock.
+public class DiscoveredTopic {
+
+	// Local endpoints of one kind
+	public static class Endpoints {
+		// number of discovered endpoints
+		int count = 0;
+		// endpoint data registered in ZK, null while no znode and session exist
+		TopicEndpointData endpoint_data;
+		// set while the teardown of the znode and session is pending
+		boolean lingering = false;
+		// incremented whenever a pending teardown is scheduled or cancelled
+		int linger_generation = 0;
+
+		public boolean registered() {
+			return endpoint_data != null;
+		}
+	}
+
+	// topic name without whitespace, used in ZK paths
+	public final String name;
+	private final Endpoints[] endpoints = new Endpoints[EndpointKind.values().length];
+	// RB the topic is currently routed through, null if not known
+	String rb_address;
+	// leader placement mode: watches /topics/t for the RB assigned to the topic
+	NodeCache rb_cache;
+
+	DiscoveredTopic(String name) {
+		this.name = name;
+		for (int i = 0; i < endpoints.length; i++) {
+			endpoints[i] = new Endpoints();
+		}
+	}
+
+	public Endpoints endpoints(EndpointKind kind) {
+		return endpoints[kind.ordinal()];
+	}
+
+	// True if endpoints of any kind are registered for this topic
+	public boolean registered() {
+		for (Endpoints e : endpoints) {
+			if (e.registered()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public String path() {
+		return CuratorHelper.TOPIC_PATH + "/" + name;
+	}
+}
@@ -0,0 +1,453 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.NodeCache;
+import org.apache.curator.framework.recipes.cache.NodeCacheListener;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+// Applies the publishers and subscribers discovered in the local domain(s) of an
+// edge broker to ZK and Routing Service. The builtin topic listeners intern the
+// topic of each endpoint and queue an event; the discovery queue hands the publisher
+// and subscriber events of a topic to apply() together, which
+//  - registers the endpoints of a kind when their count goes from 0 to >0: creates
+//    the ephemeral znode /topics/t/{pub,sub}/<eb> and the topic session, and adds
+//    the topic's RB as peer of the domain route
+//  - tears them down LINGER_MS after their count dropped to 0, unless an endpoint
+//    of that kind reappears before, in which case the znode and session are reused.
+// The RB of a topic is followed once for both kinds of endpoints: through a NodeCache
+// on /topics/t in leader placement mode, from the hash ring otherwise.
+public class DiscoveryEngine implements DiscoveryQueue.Handler {
+	// Time the endpoints of a kind stay registered after the last one went away; 0 tears them down at once
+	private static final long LINGER_MS = Long.getLong("pubsubcoord.discovery.linger_ms", 5000);
+
+	//This local domain's DomainRouteName's Prefix
+	private static final String DOMAIN_ROUTE_NAME_PREFIX = "EdgeBrokerDomainRoute";
+	private static final String LOCAL_DOMAIN_ROUTE_NAME_PREFIX = "LocalEdgeBrokerDomainRoute";
+
+	private Logger logger;
+	private String ebAddress;
+	private CuratorFramework client;
+	private RoutingServiceAdministrator rs;
+	//hash placement mode: ring of routing brokers
+	private HashPlacement placement;
+
+	//domain routes on which the topic sessions for each kind of endpoints are created
+	private String[][] session_routes = new String[EndpointKind.values().length][];
+	//keeps track of RBs each kind of endpoints is interfacing with and for which topics
+	private PeerTracker[] rb_peers = new PeerTracker[EndpointKind.values().length];
+	//interned topics by name. Entries are never removed, as events may still be queued
+	//for a topic instance when its endpoints are torn down
+	private ConcurrentHashMap<String, DiscoveredTopic> topics = new ConcurrentHashMap<String, DiscoveredTopic>();
+	//applies discovered endpoints to ZK and RS off the DDS threads
+	private DiscoveryQueue discovery_queue;
+	//topics by path of the EB znodes whose delete failed, deleted again on the next reconcile
+	private ConcurrentHashMap<String, String> undeleted_znodes = new ConcurrentHashMap<String, String>();
+	//set when the ZK session is lost, so that the next reconcile scans all topics
+	private volatile boolean session_lost = false;
+
+	public DiscoveryEngine(String ebAddress, CuratorFramework client, RoutingServiceAdministrator rs,
+			boolean emulated_broker, HashPlacement placement) {
+		logger = LogManager.getLogger(this.getClass().getSimpleName());
+		this.ebAddress = ebAddress;
+		this.client = client;
+		this.rs = rs;
+		this.placement = placement;
+
+		String domainRouteName = DOMAIN_ROUTE_NAME_PREFIX + "@" + ebAddress;
+		for (EndpointKind kind : EndpointKind.values()) {
+			String route = emulated_broker ? kind.emulatedDomainRoutePrefix + "@" + ebAddress : domainRouteName;
+			if (emulated_broker && kind == EndpointKind.PUBLISHER) {
+				//publishers of an emulated broker are also routed to the local subscriber domain
+				session_routes[kind.ordinal()] = new String[] { LOCAL_DOMAIN_ROUTE_NAME_PREFIX + "@" + ebAddress, route };
+			} else {
+				session_routes[kind.ordinal()] = new String[] { route };
+			}
+			rb_peers[kind.ordinal()] = new PeerTracker(rs, route, false);
+		}
+		discovery_queue = new DiscoveryQueue("edge", this);
+
+		//EB znodes are ephemeral: on reconnection, restore the ones that expired with the old session
+		client.getConnectionStateListenable().addListener(new ConnectionStateListener() {
+			@Override
+			public void stateChanged(CuratorFramework client, ConnectionState newState) {
+				if (newState == ConnectionState.LOST) {
+					session_lost = true;
+				} else if (newState == ConnectionState.RECONNECTED) {
+					boolean full = session_lost;
+					session_lost = false;
+					schedule_reconcile(full);
+				}
+			}
+		});
+		//remove EB znodes left behind by a previous run of this EB
+		schedule_reconcile(true);
+		if (placement != null) {
+			placement.addListener(new HashPlacement.RingChangeListener() {
+				@Override
+				public void ringChanged() {
+					reassign_topics();
+				}
+			});
+		}
+	}
+
+	// Returns the single instance for the topic named topic_name (whitespace is ignored)
+	public DiscoveredTopic intern(String topic_name) {
+		DiscoveredTopic topic = topics.get(topic_name);
+		if (topic != null) {
+			return topic;
+		}
+		String name = topic_name.replaceAll("\\s", "");
+		topic = topics.get(name);
+		if (topic == null) {
+			DiscoveredTopic created = new DiscoveredTopic(name);
+			topic = topics.putIfAbsent(name, created);
+			if (topic == null) {
+				topic = created;
+			}
+		}
+		return topic;
+	}
+
+	// Called on a DDS thread for a discovered endpoint
+	public void discovered(DiscoveredTopic topic, EndpointKind kind, TopicEndpointData endpoint_data) {
+		discovery_queue.put(new DiscoveryQueue.Event(topic, kind, endpoint_data));
+	}
+
+	// Called on a DDS thread for a removed endpoint
+	public void removed(DiscoveredTopic topic, EndpointKind kind) {
+		discovery_queue.put(new DiscoveryQueue.Event(topic, kind, null));
+	}
+
+	//Runs on the discovery worker of topic: applies the net change of the endpoint counts
+	//over a batch of discovery events, so that endpoints that come and go within one
+	//batch cause no ZK or RS traffic
+	@Override
+	public void apply(DiscoveredTopic topic, List<DiscoveryQueue.Event> events) {
+		for (EndpointKind kind : EndpointKind.values()) {
+			DiscoveredTopic.Endpoints endpoints = topic.endpoints(kind);
+			int count = endpoints.count;
+			TopicEndpointData endpoint_data = null;
+			for (DiscoveryQueue.Event event : events) {
+				if (event.kind != kind) {
+					continue;
+				}
+				if (event.alive) {
+					endpoints.count++;
+					endpoint_data = event.endpoint_data;
+				} else {
+					endpoints.count--;
+				}
+			}
+			if (endpoints.count == count) {
+				continue;
+			}
+			logger.debug(String.format("Current %s count for topic:%s is %d\n", kind, topic.name, endpoints.count));
+
+			if (count == 0 && endpoints.count > 0) {
+				if (endpoints.lingering) {
+					endpoints.lingering = false;
+					endpoints.linger_generation++;
+					logger.debug(String.format("Reusing %s topic session for topic:%s\n", kind, topic.name));
+				} else {
+					register(topic, kind, endpoint_data);
+				}
+			} else if (count > 0 && endpoints.count == 0) {
+				linger(topic, kind);
+			}
+		}
+	}
+
+	//Update the endpoints of kind for topic t at ZK path /topics/t/{pub,sub}/ebLocator and create their topic session
+	private void register(DiscoveredTopic topic, EndpointKind kind, TopicEndpointData endpoint_data) {
+		topic.endpoints(kind).endpoint_data = endpoint_data;
+		create_EB_znode(topic, kind, endpoint_data);
+
+		logger.debug(String.format("Creating %s topic session for topic:%s\n", kind, topic.name));
+		String command_string = CommandTemplates.topicSession(kind.session, endpoint_data.topic_name,
+				endpoint_data.type_name);
+		for (String route : session_routes[kind.ordinal()]) {
+			rs.createTopicSession(route, command_string);
+		}
+
+		//Install listener for RB assignment for topic t
+		install_topic_to_rb_assignment_listener(topic, kind);
+	}
+
+	// Tears down the endpoints of kind for topic after LINGER_MS, unless they reappear before
+	private void linger(final DiscoveredTopic topic, final EndpointKind kind) {
+		final DiscoveredTopic.Endpoints endpoints = topic.endpoints(kind);
+		if (LINGER_MS <= 0) {
+			unregister(topic, kind);
+			return;
+		}
+		logger.debug(String.format("Topic:%s has no %s, tearing it down in %d ms\n", topic.name, kind, LINGER_MS));
+		endpoints.lingering = true;
+		final int generation = ++endpoints.linger_generation;
+		discovery_queue.schedule(topic, new Runnable() {
+			@Override
+			public void run() {
+				//skip if endpoints reappeared in the meantime
+				if (endpoints.lingering && endpoints.linger_generation == generation) {
+					endpoints.lingering = false;
+					unregister(topic, kind);
+				}
+			}
+		}, LINGER_MS);
+	}
+
+	private void unregister(DiscoveredTopic topic, EndpointKind kind) {
+		DiscoveredTopic.Endpoints endpoints = topic.endpoints(kind);
+		TopicEndpointData endpoint_data = endpoints.endpoint_data;
+		endpoints.endpoint_data = null;
+		delete_EB_znode(topic, kind);
+
+		//Remove topic session as endpoint count is 0
+		logger.debug(String.format("Removing %s topic session for %s as count is 0\n", kind, topic.name));
+		for (String route : session_routes[kind.ordinal()]) {
+			rs.deleteTopicSession(kind.session.sessionName(route, endpoint_data.topic_name));
+		}
+
+		//The RB stays a peer of the domain route, as Routing Service cannot remove peers
+
+		//Remove listener for RB assignment once no endpoints of any kind are left
+		if (!topic.registered()) {
+			topic.rb_address = null;
+			if (topic.rb_cache != null) {
+				logger.debug(String.format("Removing listener for RB assignment for topic node:%s\n", topic.path()));
+				NodeCache topicCache = topic.rb_cache;
+				topic.rb_cache = null;
+				topicCache.getListenable().clear();
+				try {
+					topicCache.close();
+				} catch (IOException e) {
+					logger.error(e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	private void create_EB_znode(DiscoveredTopic topic, EndpointKind kind, TopicEndpointData endpoint_data) {
+		//ensure topic path /topics/t/pub and /topics/t/sub exists
+		ensure_topic_path_exists(topic.name);
+		String path = kind.znodePath(topic.name, ebAddress);
+		try {
+			byte[] data = CuratorHelper.serializeEndpoint(endpoint_data);
+			try {
+				//ephemeral, so that ZK removes it if this EB dies
+				client.create().
+					creatingParentsIfNeeded().
+					withMode(CreateMode.EPHEMERAL).
+					forPath(path, data);
+			} catch (KeeperException.NodeExistsException e) {
+				//left by an earlier ZK session of this EB, which would remove it when it expires
+				client.delete().forPath(path);
+				client.create().withMode(CreateMode.EPHEMERAL).forPath(path, data);
+			}
+			undeleted_znodes.remove(path);
+			logger.debug(String.format("Created EB znode:%s\n", path));
+		} catch (Exception e) {
+			//recreated by the reconcile that follows reconnection
+			logger.error(String.format("Failed to create EB znode:%s\n", path), e);
+		}
+	}
+
+	private void delete_EB_znode(DiscoveredTopic topic, EndpointKind kind) {
+		String path = kind.znodePath(topic.name, ebAddress);
+		try {
+			client.delete().forPath(path);
+			logger.debug(String.format("Deleted EB znode:%s as %s count for topic:%s is 0\n", path, kind, topic.name));
+		} catch (KeeperException.NoNodeException e) {
+			logger.debug(String.format("EB znode:%s was already deleted\n", path));
+		} catch (Exception e) {
+			undeleted_znodes.put(path, topic.name);
+			logger.error(String.format("Failed to delete EB znode:%s\n", path), e);
+		}
+	}
+
+	private void schedule_reconcile(final boolean full) {
+		discovery_queue.execute(new Runnable() {
+			@Override
+			public void run() {
+				reconcile(full);
+			}
+		});
+	}
+
+	//Diffs the registered endpoints against the EB znodes under /topics/t/{pub,sub} and
+	//rewrites only the differences: znodes lost with an expired session or still owned by
+	//an old session are recreated, znodes of topics without local endpoints are deleted.
+	//A full reconcile, at startup and after the session was lost, checks this EB's znode
+	//of every topic in ZK. Otherwise only the topics with local endpoints and the znodes
+	//whose delete failed are checked, so that a reconnection costs no more ZK requests
+	//than this EB has registered endpoints.
+	private void reconcile(boolean full) {
+		try {
+			long session_id = client.getZookeeperClient().getZooKeeper().getSessionId();
+			HashSet<String> names = new HashSet<String>();
+			if (full) {
+				names.addAll(topics.keySet());
+				names.addAll(client.getChildren().forPath(CuratorHelper.TOPIC_PATH));
+			} else {
+				for (DiscoveredTopic topic : topics.values()) {
+					if (topic.registered()) {
+						names.add(topic.name);
+					}
+				}
+				names.addAll(undeleted_znodes.values());
+			}
+			int changes = 0;
+			for (String name : names) {
+				DiscoveredTopic topic = topics.get(name);
+				synchronized (discovery_queue.lockFor(name)) {
+					for (EndpointKind kind : EndpointKind.values()) {
+						String path = kind.znodePath(name, ebAddress);
+						TopicEndpointData endpoint_data = topic != null ? topic.endpoints(kind).endpoint_data : null;
+						if (!full && endpoint_data == null && !undeleted_znodes.containsKey(path)) {
+							continue;
+						}
+						Stat stat = client.checkExists().forPath(path);
+						if (endpoint_data == null && stat != null) {
+							client.delete().forPath(path);
+							undeleted_znodes.remove(path);
+						} else if (endpoint_data == null) {
+							undeleted_znodes.remove(path);
+							continue;
+						} else if (endpoint_data != null && (stat == null || stat.getEphemeralOwner() != session_id)) {
+							create_EB_znode(topic, kind, endpoint_data);
+						} else {
+							continue;
+						}
+						changes++;
+					}
+				}
+			}
+			logger.debug(String.format("EB:%s reconciled %d topics with ZK (%s), %d EB znodes rewritten\n",
+					ebAddress, names.size(), full ? "full" : "registered", changes));
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	private void install_topic_to_rb_assignment_listener(final DiscoveredTopic topic, EndpointKind kind) {
+		if (topic.rb_address != null) {
+			//RB already followed for the other kind of endpoints of this topic
+			rb_assigned(topic, kind, topic.rb_address);
+			return;
+		}
+		if (placement != null) {
+			//RB for topic t is computed locally from the hash ring
+			String rb_address = placement.owner(topic.name);
+			if (rb_address == null) {
+				logger.error(String.format("No routing broker available for topic:%s\n", topic.name));
+				return;
+			}
+			rb_changed(topic, rb_address);
+			return;
+		}
+		if (topic.rb_cache == null) {
+			final NodeCache topicCache = new NodeCache(client, topic.path());
+			topic.rb_cache = topicCache;
+
+			logger.debug(String.format("Installing listener for topic:%s to listen for RB assignment\n",
+					topic.name));
+			topicCache.getListenable().addListener(new NodeCacheListener() {
+
+				@Override
+				public void nodeChanged() throws Exception {
+					ChildData data = topicCache.getCurrentData();
+					if (data == null) {
+						return;
+					}
+					String rb_address = new String(data.getData());
+					if (!rb_address.isEmpty()) {
+						synchronized (discovery_queue.lockFor(topic)) {
+							//the topic may have been removed while this event was delivered
+							if (topic.rb_cache == topicCache) {
+								rb_changed(topic, rb_address);
+							}
+						}
+					}
+				}
+			});
+			try {
+				topicCache.start();
+			} catch (Exception e) {
+				logger.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	// Records rb_address as the RB of topic, in place of the RB previously used for it
+	// (the topic was migrated or its RB failed)
+	private void rb_changed(DiscoveredTopic topic, String rb_address) {
+		String old_rb = topic.rb_address;
+		topic.rb_address = rb_address;
+		if (old_rb != null && !old_rb.equals(rb_address)) {
+			logger.debug(String.format("Topic:%s moved from RB:%s to RB:%s\n", topic.name, old_rb, rb_address));
+		}
+		for (EndpointKind kind : EndpointKind.values()) {
+			if (!topic.endpoints(kind).registered()) {
+				continue;
+			}
+			rb_assigned(topic, kind, rb_address);
+		}
+	}
+
+	// Adds rb_address as peer for the endpoints of kind of topic, unless they already interface with it
+	private void rb_assigned(DiscoveredTopic topic, EndpointKind kind, String rb_address) {
+		logger.debug(String.format("Topic:%s was assigned to RB:%s\n", topic.path(), rb_address));
+		if (!rb_peers[kind.ordinal()].acquire(kind.rbLocator(rb_address))) {
+			logger.debug(String.format("RB:%s for topic:%s is already a peer or being added\n", rb_address, topic.path()));
+		}
+	}
+
+	//Routing brokers joined or left the hash ring: move topics whose RB changed
+	private synchronized void reassign_topics() {
+		for (DiscoveredTopic topic : topics.values()) {
+			synchronized (discovery_queue.lockFor(topic)) {
+				if (!topic.registered()) {
+					continue;
+				}
+				String new_rb = placement.owner(topic.name);
+				if (new_rb != null && !new_rb.equals(topic.rb_address)) {
+					rb_changed(topic, new_rb);
+				}
+			}
+		}
+	}
+
+	private void ensure_topic_path_exists(String topic) {
+		String topic_subscribers_path = CuratorHelper.TOPIC_PATH + "/" + topic + "/sub";
+		String topic_publishers_path = CuratorHelper.TOPIC_PATH + "/" + topic + "/pub";
+		try {
+			if (client.checkExists().forPath(topic_subscribers_path) == null) {
+				client.create().
+					creatingParentsIfNeeded().
+					forPath(topic_subscribers_path);
+				logger.debug(String.format("EB:%s created topic path for subscribers:%s\n",
+						ebAddress, topic_subscribers_path));
+			}
+			if (client.checkExists().forPath(topic_publishers_path) == null) {
+				client.create().
+					creatingParentsIfNeeded().
+					forPath(topic_publishers_path);
+				logger.debug(String.format("EB:%s created topic path for publishers:%s\n",
+						ebAddress, topic_publishers_path));
+			}
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+// Moves the handling of DDS builtin discovery samples off the DDS receive thread.
+// The builtin topic listener only takes samples and puts them into one of WORKERS
+// bounded queues, chosen by topic. Each worker drains its queue in batches of up to
+// BATCH_SIZE and hands the events of a batch to the handler grouped by topic, in
+// arrival order, so the handler can apply the net ZK and RS side effects of the
+// publisher and subscriber events of a topic once per batch. Events for a topic are
+// always applied by the same worker.
+// Queue depth and the lag between a sample's arrival and its handling are logged
+// every METRICS_INTERVAL_MS.
+
+public class DiscoveryQueue {
+	private static final int WORKERS = Integer.getInteger("pubsubcoord.discovery.workers", 4);
+	// Total number of queued events; put() blocks the DDS thread when a worker's share is full
+	private static final int QUEUE_CAPACITY = Integer.getInteger("pubsubcoord.discovery.queue_capacity", 10000);
+	private static final int BATCH_SIZE = Integer.getInteger("pubsubcoord.discovery.batch_size", 256);
+	private static final long METRICS_INTERVAL_MS = Long.getLong("pubsubcoord.discovery.metrics_interval_ms", 10000);
+
+	// A discovered (alive) or removed endpoint of a topic
+	public static class Event {
+		public final DiscoveredTopic topic;
+		public final EndpointKind kind;
+		public final boolean alive;
+		// endpoint data of an alive endpoint, null for a removed one
+		public final TopicEndpointData endpoint_data;
+		final long enqueueNanos = System.nanoTime();
+
+		public Event(DiscoveredTopic topic, EndpointKind kind, TopicEndpointData endpoint_data) {
+			this.topic = topic;
+			this.kind = kind;
+			this.alive = endpoint_data != null;
+			this.endpoint_data = endpoint_data;
+		}
+	}
+
+	public interface Handler {
+		// Applies the events of one batch for topic, in arrival order.
+		// Called on the topic's worker thread, holding lockFor(topic).
+		void apply(DiscoveredTopic topic, List<Event> events) throws Exception;
+	}
+
+	private final Logger logger;
+	private final String name;
+	private final Handler handler;
+	private final ArrayList<ArrayBlockingQueue<Event>> queues = new ArrayList<ArrayBlockingQueue<Event>>();
+	private final Object[] locks = new Object[WORKERS];
+	private final ScheduledExecutorService scheduler;
+
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong lagNanosTotal = new AtomicLong();
+	private final AtomicLong lagSamples = new AtomicLong();
+	private final AtomicLong maxLagNanos = new AtomicLong();
+
+	public DiscoveryQueue(final String name, Handler handler) {
+		logger = LogManager.getLogger(this.getClass().getSimpleName());
+		this.name = name;
+		this.handler = handler;
+		int capacity = Math.max(1, QUEUE_CAPACITY / WORKERS);
+		for (int i = 0; i < WORKERS; i++) {
+			final ArrayBlockingQueue<Event> queue = new ArrayBlockingQueue<Event>(capacity);
+			final Object lock = new Object();
+			queues.add(queue);
+			locks[i] = lock;
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work(queue, lock);
+				}
+			}, String.format("discovery-%s-%d", name, i));
+			worker.setDaemon(true);
+			worker.start();
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, String.format("discovery-%s-scheduler", name));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				logMetrics();
+			}
+		}, METRICS_INTERVAL_MS, METRICS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	// Queues event for its topic's worker. Blocks while that worker's queue is full.
+	public void put(Event event) {
+		try {
+			queues.get(partition(event.topic.name)).put(event);
+			enqueued.incrementAndGet();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error(String.format("Interrupted while queueing discovery event for topic:%s\n", event.topic.name));
+		}
+	}
+
+	// Lock held while the events of topic are applied. Taken by other threads
+	// that change state of topic kept by the handler.
+	public Object lockFor(DiscoveredTopic topic) {
+		return lockFor(topic.name);
+	}
+
+	public Object lockFor(String topic) {
+		return locks[partition(topic)];
+	}
+
+	// Runs task holding lockFor(topic) after delayMs
+	public ScheduledFuture<?> schedule(final DiscoveredTopic topic, final Runnable task, long delayMs) {
+		return scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (lockFor(topic)) {
+					try {
+						task.run();
+					} catch (Exception e) {
+						logger.error(e.getMessage(), e);
+					}
+				}
+			}
+		}, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	// Runs task on the queue's scheduler thread, for work that must not hold up
+	// the caller's thread (e.g. a Curator event thread)
+	public void execute(final Runnable task) {
+		scheduler.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} catch (Exception e) {
+					logger.error(e.getMessage(), e);
+				}
+			}
+		});
+	}
+
+	// Number of events waiting to be handled
+	public int depth() {
+		int depth = 0;
+		for (ArrayBlockingQueue<Event> queue : queues) {
+			depth += queue.size();
+		}
+		return depth;
+	}
+
+	public long processed() {
+		return processed.get();
+	}
+
+	// Largest time an event waited before it was handled since the last metrics report
+	public double maxLagMillis() {
+		return maxLagNanos.get() / 1e6;
+	}
+
+	public void close() {
+		scheduler.shutdownNow();
+	}
+
+	private int partition(String topic) {
+		return (topic.hashCode() & 0x7fffffff) % WORKERS;
+	}
+
+	private void work(ArrayBlockingQueue<Event> queue, Object lock) {
+		ArrayList<Event> batch = new ArrayList<Event>(BATCH_SIZE);
+		// DiscoveredTopic instances are interned, so topics are grouped by identity
+		LinkedHashMap<DiscoveredTopic, List<Event>> topic_events = new LinkedHashMap<DiscoveredTopic, List<Event>>();
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch, BATCH_SIZE - 1);
+			recordLag(System.nanoTime() - batch.get(0).enqueueNanos);
+
+			for (Event event : batch) {
+				List<Event> events = topic_events.get(event.topic);
+				if (events == null) {
+					events = new ArrayList<Event>();
+					topic_events.put(event.topic, events);
+				}
+				events.add(event);
+			}
+			for (Map.Entry<DiscoveredTopic, List<Event>> entry : topic_events.entrySet()) {
+				synchronized (lock) {
+					try {
+						handler.apply(entry.getKey(), entry.getValue());
+					} catch (Exception e) {
+						logger.error(e.getMessage(), e);
+					}
+				}
+			}
+			processed.addAndGet(batch.size());
+			batch.clear();
+			topic_events.clear();
+		}
+	}
+
+	private void recordLag(long lagNanos) {
+		lagNanosTotal.addAndGet(lagNanos);
+		lagSamples.incrementAndGet();
+		long max;
+		while (lagNanos > (max = maxLagNanos.get())) {
+			if (maxLagNanos.compareAndSet(max, lagNanos)) {
+				break;
+			}
+		}
+	}
+
+	private void logMetrics() {
+		long samples = lagSamples.getAndSet(0);
+		long total = lagNanosTotal.getAndSet(0);
+		long max = maxLagNanos.getAndSet(0);
+		logger.debug(String.format("Discovery queue:%s depth:%d enqueued:%d processed:%d "
+				+ "avg lag:%.3f ms max lag:%.3f ms\n", name, depth(), enqueued.get(), processed.get(),
+				samples > 0 ? total / 1e6 / samples : 0.0, max / 1e6));
+	}
+}
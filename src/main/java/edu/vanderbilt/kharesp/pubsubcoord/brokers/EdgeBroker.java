@@ -47,6 +47,10 @@ public class EdgeBroker {
     private String zkConnector;
     private RoutingServiceAdministrator rs;
     private CuratorFramework client = null;
+    // Ring of routing brokers, when topics are placed by consistent hashing
+    private HashPlacement placement = null;
+    // Applies discovered publishers and subscribers to ZK and RS
+    private DiscoveryEngine discovery_engine = null;
     private Logger logger;
 
     public EdgeBroker(String zkConnector,boolean emulated_broker){
@@ -107,6 +111,11 @@ public class EdgeBroker {
         				CuratorHelper.TOPIC_PATH,ebAddress,CuratorHelper.TOPIC_PATH));
         		client.create().withMode(CreateMode.PERSISTENT).forPath(CuratorHelper.TOPIC_PATH, new byte[0]);
         	}
+        	if (HashPlacement.ENABLED){
+        		logger.debug(String.format("EB:%s computes routing brokers of topics by consistent hashing\n",ebAddress));
+        		placement=new HashPlacement(client);
+        	}
+        	discovery_engine=new DiscoveryEngine(ebAddress,client,rs,emulated_broker,placement);
         	// Create built-in entities
         	if(emulated_broker)
         		createBuiltinTopics_brokered();
@@ -173,7 +182,7 @@ public class EdgeBroker {
 			logger.debug(String.format("EdgeBroker:%s installing listener for publisher discovery\n",ebAddress));
 			// Install listener for Publication discovery
 			BuiltinPublisherListener builtin_publisher_listener =
-					new BuiltinPublisherListener(ebAddress,client,rs,emulated_broker);
+					new BuiltinPublisherListener(discovery_engine);
 			builtin_publication_datareader.set_listener(builtin_publisher_listener, StatusKind.STATUS_MASK_ALL);
 			
     	}catch(Exception e){
@@ -200,7 +209,7 @@ public class EdgeBroker {
 			logger.debug(String.format("EdgeBroker:%s installing listener for subscriber discovery\n", ebAddress));
 			// Install listener for Subscription discovery
 			BuiltinSubscriberListener builtin_subscriber_listener = 
-					new BuiltinSubscriberListener(ebAddress, client,rs,emulated_broker);
+					new BuiltinSubscriberListener(discovery_engine);
 			builtin_subscription_datareader.set_listener(builtin_subscriber_listener, StatusKind.STATUS_MASK_ALL);
 
 		} catch (Exception e) {
@@ -214,173 +223,32 @@ public class EdgeBroker {
     	logger.debug(String.format("EB:%s will create a DomainRoute:%s between local domain id:%d and wan domain id:%d\n",
     			ebAddress,domainRouteName,DEFAULT_DOMAIN_ID,WAN_DOMAIN_ID));
     	
-    	rs.createDomainRoute("str://\"<domain_route name=\"" + domainRouteName + "\">" 
-    					+ "<entity_monitoring>"
-    					+ "<historical_statistics><up_time>true</up_time></historical_statistics>"
-    					+ "</entity_monitoring>"
-    					+ "<participant_1>" 
-    					+ "<domain_id>" 
-    					+ DEFAULT_DOMAIN_ID
-    					+ "</domain_id>" 
-    					+ "<participant_qos>" 
-    					+ "<database>"
-    					+ "<cleanup_period>"
-    					+ "<sec>1</sec>"
-    					+ "</cleanup_period>"
-    					+ "</database>"
-    					+ "<transport_builtin><mask>UDPv4</mask></transport_builtin>" 
-    					+ "</participant_qos>" 
-    					+ "</participant_1>" 
-    					+ "<participant_2>" 
-    					+ "<domain_id>" 
-    					+ WAN_DOMAIN_ID 
-    					+ "</domain_id>"
-    					+ "<participant_qos>"
-    					+ "<database>"
-    					+ "<cleanup_period>"
-    					+ "<sec>1</sec>"
-    					+ "</cleanup_period>"
-    					+ "</database>"
-    					+ "<transport_builtin><mask>MASK_NONE</mask></transport_builtin>"
-    					+ "<property><value>" 
-    					+ "<element><name>dds.transport.load_plugins</name><value>dds.transport.TCPv4.tcp1</value></element>" 
-                        + "<element><name>dds.transport.TCPv4.tcp1.library</name><value>nddstransporttcp</value></element>" 
-                        + "<element><name>dds.transport.TCPv4.tcp1.create_function</name><value>NDDS_Transport_TCPv4_create</value></element>" 
-                        + "<element><name>dds.transport.TCPv4.tcp1.parent.classid</name><value>NDDS_TRANSPORT_CLASSID_TCPV4_WAN</value></element>" 
-                        + "<element><name>dds.transport.TCPv4.tcp1.public_address</name><value>" 
-                        + ebAddress + ":" + EB_P2_BIND_PORT 
-                        + "</value></element>" 
-                        + "<element><name>dds.transport.TCPv4.tcp1.server_bind_port</name><value>" 
-                        + EB_P2_BIND_PORT 
-                        + "</value></element>" 
-                        + "</value></property>" 
-                        + "</participant_qos>" 
-                        + "</participant_2>" 
-                        + "</domain_route>\"");
+    	rs.createDomainRoute(CommandTemplates.domainRoute(domainRouteName,
+    			CommandTemplates.lanParticipant(DEFAULT_DOMAIN_ID),
+    			CommandTemplates.wanParticipant(WAN_DOMAIN_ID,ebAddress,EB_P2_BIND_PORT)));
     }
     private void createLocalDomainRoute(){
     	logger.debug(String.format("EB:%s will create a DomainRoute:%s between publisher's local domain id:%d and subscriber's local domain id:%d\n",
     			ebAddress,localDomainRouteName,PUB_DOMAIN_ID,SUB_DOMAIN_ID));
-    	rs.createDomainRoute("str://\"<domain_route name=\"" + localDomainRouteName + "\">" 
-                + "<entity_monitoring>" 
-                + "<historical_statistics><up_time>true</up_time></historical_statistics>" 
-                + "</entity_monitoring>" 
-                + "<participant_1>" 
-                + "<domain_id>" + PUB_DOMAIN_ID+ "</domain_id>" 
-                + "<participant_qos>" 
-    			+ "<database>"
-    			+ "<cleanup_period>"
-    			+ "<sec>1</sec>"
-    			+ "</cleanup_period>"
-    			+ "</database>"
-                + "<transport_builtin><mask>UDPv4</mask></transport_builtin>" 
-                + "</participant_qos>" 
-                + "</participant_1>" 
-                + "<participant_2>" 
-                + "<domain_id>" + SUB_DOMAIN_ID + "</domain_id>" 
-                + "<participant_qos>" 
-    			+ "<database>"
-    			+ "<cleanup_period>"
-    			+ "<sec>1</sec>"
-    			+ "</cleanup_period>"
-    			+ "</database>"
-                + "<transport_builtin><mask>UDPv4</mask></transport_builtin>" 
-                + "</participant_qos>" 
-                + "</participant_2>" 
-                + "</domain_route>\"");
-    	
+    	rs.createDomainRoute(CommandTemplates.domainRoute(localDomainRouteName,
+    			CommandTemplates.lanParticipant(PUB_DOMAIN_ID),
+    			CommandTemplates.lanParticipant(SUB_DOMAIN_ID)));
     }
     private void createPubDomainRoute(){
     	logger.debug(String.format("EB:%s will create a DomainRoute:%s between publisher's local domain id:%d and wan domain id:%d\n",
     			ebAddress,pubDomainRouteName,PUB_DOMAIN_ID,WAN_DOMAIN_ID));
     	
-    	rs.createDomainRoute("str://\"<domain_route name=\"" + pubDomainRouteName + "\">" 
-                         + "<entity_monitoring>" 
-                         + "<historical_statistics><up_time>true</up_time></historical_statistics>" 
-                         + "</entity_monitoring>" 
-                         + "<participant_1>" 
-                         + "<domain_id>" + PUB_DOMAIN_ID+ "</domain_id>" 
-                         + "<participant_qos>" 
-    			         + "<database>"
-    			         + "<cleanup_period>"
-    			         + "<sec>1</sec>"
-    			         + "</cleanup_period>"
-    			         + "</database>"
-                         + "<transport_builtin><mask>UDPv4</mask></transport_builtin>" 
-                         + "</participant_qos>" 
-                         + "</participant_1>" 
-                         + "<participant_2>" 
-                         + "<domain_id>"
-                         + WAN_DOMAIN_ID 
-                         + "</domain_id>" 
-                         + "<participant_qos>" 
-                         + "<database>"
-                         + "<cleanup_period>"
-                         + "<sec>1</sec>"
-                         + "</cleanup_period>"
-                         + "</database>"
-                         + "<transport_builtin><mask>MASK_NONE</mask></transport_builtin>" 
-                         + "<property><value>" 
-                         + "<element><name>dds.transport.load_plugins</name><value>dds.transport.TCPv4.tcp1</value></element>" 
-                         + "<element><name>dds.transport.TCPv4.tcp1.library</name><value>nddstransporttcp</value></element>" 
-                         + "<element><name>dds.transport.TCPv4.tcp1.create_function</name><value>NDDS_Transport_TCPv4_create</value></element>" 
-                         + "<element><name>dds.transport.TCPv4.tcp1.parent.classid</name><value>NDDS_TRANSPORT_CLASSID_TCPV4_WAN</value></element>" 
-                         + "<element><name>dds.transport.TCPv4.tcp1.public_address</name><value>" 
-                         + ebAddress + ":" + EB_P2_PUB_BIND_PORT 
-                         + "</value></element>" 
-                         + "<element><name>dds.transport.TCPv4.tcp1.server_bind_port</name><value>" 
-                         + EB_P2_PUB_BIND_PORT 
-                         + "</value></element>"
-                         + "</value></property>" 
-                         + "</participant_qos>" 
-                         + "</participant_2>" 
-                         + "</domain_route>\"");
+    	rs.createDomainRoute(CommandTemplates.domainRoute(pubDomainRouteName,
+    			CommandTemplates.lanParticipant(PUB_DOMAIN_ID),
+    			CommandTemplates.wanParticipant(WAN_DOMAIN_ID,ebAddress,EB_P2_PUB_BIND_PORT)));
     }
     private void createSubDomainRoute(){
     	logger.debug(String.format("EB:%s will create a DomainRoute:%s between subscriber's local domain id:%d and wan domain id:%d\n",
     			ebAddress,subDomainRouteName,SUB_DOMAIN_ID,WAN_DOMAIN_ID));
     	
-    	rs.createDomainRoute("str://\"<domain_route name=\"" + subDomainRouteName + "\">" 
-                         + "<entity_monitoring>" 
-                         + "<historical_statistics><up_time>true</up_time></historical_statistics>" 
-                         + "</entity_monitoring>" 
-                         + "<participant_1>" 
-                         + "<domain_id>" + SUB_DOMAIN_ID+ "</domain_id>" 
-                         + "<participant_qos>" 
-                         + "<database>"
-                         + "<cleanup_period>"
-                         + "<sec>1</sec>"
-                         + "</cleanup_period>"
-                         + "</database>"
-                         + "<transport_builtin><mask>UDPv4</mask></transport_builtin>" 
-                         + "</participant_qos>" 
-                         + "</participant_1>" 
-                         + "<participant_2>" 
-                         + "<domain_id>"
-                         + WAN_DOMAIN_ID 
-                         + "</domain_id>" 
-                         + "<participant_qos>" 
-                         + "<database>"
-                         + "<cleanup_period>"
-                         + "<sec>1</sec>"
-                         + "</cleanup_period>"
-                         + "</database>"
-                         + "<transport_builtin><mask>MASK_NONE</mask></transport_builtin>" 
-                         + "<property><value>" 
-                         + "<element><name>dds.transport.load_plugins</name><value>dds.transport.TCPv4.tcp1</value></element>" 
-                         + "<element><name>dds.transport.TCPv4.tcp1.library</name><value>nddstransporttcp</value></element>" 
-                         + "<element><name>dds.transport.TCPv4.tcp1.create_function</name><value>NDDS_Transport_TCPv4_create</value></element>" 
-                         + "<element><name>dds.transport.TCPv4.tcp1.parent.classid</name><value>NDDS_TRANSPORT_CLASSID_TCPV4_WAN</value></element>" 
-                         + "<element><name>dds.transport.TCPv4.tcp1.public_address</name><value>" 
-                         + ebAddress + ":" + EB_P2_SUB_BIND_PORT 
-                         + "</value></element>" 
-                         + "<element><name>dds.transport.TCPv4.tcp1.server_bind_port</name><value>" 
-                         + EB_P2_SUB_BIND_PORT 
-                         + "</value></element>" 
-                         + "</value></property>" 
-                         + "</participant_qos>" 
-                         + "</participant_2>" 
-                         + "</domain_route>\"");
+    	rs.createDomainRoute(CommandTemplates.domainRoute(subDomainRouteName,
+    			CommandTemplates.lanParticipant(SUB_DOMAIN_ID),
+    			CommandTemplates.wanParticipant(WAN_DOMAIN_ID,ebAddress,EB_P2_SUB_BIND_PORT)));
     }
 
 }
@@ -0,0 +1,34 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+// Kind of the endpoints discovered by an edge broker. Everything the edge broker
+// does differently for publishers and subscribers is kept here.
+public enum EndpointKind {
+	// local publishers: data flows from the local domain to the RB's port 8500
+	PUBLISHER("pub", CommandTemplates.Session.SUBSCRIPTION, "8500", "PubEdgeBrokerDomainRoute"),
+	// local subscribers: data flows from the RB's port 8501 to the local domain
+	SUBSCRIBER("sub", CommandTemplates.Session.PUBLICATION, "8501", "SubEdgeBrokerDomainRoute");
+
+	// znode /topics/t/<path>/<eb> registers the endpoints of topic t
+	public final String path;
+	// topic session created on the edge broker's domain route(s)
+	public final CommandTemplates.Session session;
+	// RB port added as peer of the domain route
+	public final String rbPort;
+	// prefix of the domain route to the wan domain of an emulated broker
+	public final String emulatedDomainRoutePrefix;
+
+	EndpointKind(String path, CommandTemplates.Session session, String rbPort, String emulatedDomainRoutePrefix) {
+		this.path = path;
+		this.session = session;
+		this.rbPort = rbPort;
+		this.emulatedDomainRoutePrefix = emulatedDomainRoutePrefix;
+	}
+
+	public String znodePath(String topic, String ebAddress) {
+		return CuratorHelper.TOPIC_PATH + "/" + topic + "/" + path + "/" + ebAddress;
+	}
+
+	public String rbLocator(String rb_address) {
+		return "tcpv4_wan://" + rb_address + ":" + rbPort;
+	}
+}
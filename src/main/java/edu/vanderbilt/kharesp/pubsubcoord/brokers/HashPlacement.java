@@ -0,0 +1,90 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache.StartMode;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+// Leaderless topic placement: keeps a ConsistentHashRing over the live children of
+// /routingBrokers so that edge and routing brokers compute the routing broker of a
+// topic locally, without a leader writing assignments to ZK.
+// Enabled with -Dpubsubcoord.placement=hash on all brokers.
+public class HashPlacement implements Closeable {
+	public static final boolean ENABLED = "hash".equals(System.getProperty("pubsubcoord.placement"));
+	// Positions of each routing broker on the ring
+	private static final int VIRTUAL_NODES = Integer.getInteger("pubsubcoord.placement.virtual_nodes", 128);
+
+	// Notified after routing brokers joined or left the ring
+	public interface RingChangeListener {
+		void ringChanged();
+	}
+
+	private Logger logger;
+	private PathChildrenCache rbChildrenCache;
+	private ConsistentHashRing ring = new ConsistentHashRing(VIRTUAL_NODES);
+	private List<RingChangeListener> listeners = new CopyOnWriteArrayList<RingChangeListener>();
+
+	public HashPlacement(CuratorFramework client) throws Exception {
+		logger = LogManager.getLogger(this.getClass().getSimpleName());
+		rbChildrenCache = new PathChildrenCache(client, CuratorHelper.ROUTING_BROKER_PATH, false);
+		rbChildrenCache.getListenable().addListener(new PathChildrenCacheListener() {
+			@Override
+			public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+				switch (event.getType()) {
+				case CHILD_ADDED:
+				case CHILD_REMOVED:
+				case CONNECTION_RECONNECTED: {
+					refresh();
+					break;
+				}
+				default:
+					break;
+				}
+			}
+		});
+		rbChildrenCache.start(StartMode.BUILD_INITIAL_CACHE);
+		refresh();
+	}
+
+	public void addListener(RingChangeListener listener) {
+		listeners.add(listener);
+	}
+
+	// Returns the routing broker responsible for topic, or null if no routing broker is live
+	public String owner(String topic) {
+		return ring.owner(topic);
+	}
+
+	private void refresh() {
+		List<String> rbs = new ArrayList<String>();
+		for (ChildData rbNode : rbChildrenCache.getCurrentData()) {
+			rbs.add(ZKPaths.getNodeFromPath(rbNode.getPath()));
+		}
+		if (ring.retainOnly(rbs)) {
+			logger.debug(String.format("Routing brokers on hash ring:%s\n", rbs));
+			for (RingChangeListener listener : listeners) {
+				try {
+					listener.ringChanged();
+				} catch (Exception e) {
+					logger.error(e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		rbChildrenCache.close();
+	}
+}
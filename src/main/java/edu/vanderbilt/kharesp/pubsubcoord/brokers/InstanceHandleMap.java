@@ -0,0 +1,158 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+import com.rti.dds.infrastructure.InstanceHandle_t;
+
+// Map from DDS instance handles to values, keyed by the 16 byte handle value read
+// as two longs. Open addressing with linear probing and backward shift deletion, so
+// put, get and remove allocate nothing (except when the table grows) and the
+// caller's InstanceHandle_t (e.g. the one in a reused SampleInfo) can be passed as is.
+// Not thread safe. Values must not be null.
+public final class InstanceHandleMap<V> {
+	private static final int HANDLE_SIZE = 16;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private long[] high;
+	private long[] low;
+	private Object[] values;
+	private int mask;
+	private int size = 0;
+	// size at which the table is doubled, for a load factor of 1/2
+	private int resizeAt;
+
+	public InstanceHandleMap() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(InstanceHandle_t handle) {
+		long h = high(handle);
+		long l = low(handle);
+		for (int i = slot(h, l);; i = (i + 1) & mask) {
+			if (values[i] == null) {
+				return null;
+			}
+			if (high[i] == h && low[i] == l) {
+				return (V) values[i];
+			}
+		}
+	}
+
+	// Maps handle to value. Returns the value previously mapped to handle, or null.
+	@SuppressWarnings("unchecked")
+	public V put(InstanceHandle_t handle, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("null value");
+		}
+		long h = high(handle);
+		long l = low(handle);
+		int i = slot(h, l);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (high[i] == h && low[i] == l) {
+				V previous = (V) values[i];
+				values[i] = value;
+				return previous;
+			}
+		}
+		high[i] = h;
+		low[i] = l;
+		values[i] = value;
+		if (++size >= resizeAt) {
+			grow();
+		}
+		return null;
+	}
+
+	// Removes the mapping of handle. Returns the value mapped to handle, or null.
+	@SuppressWarnings("unchecked")
+	public V remove(InstanceHandle_t handle) {
+		long h = high(handle);
+		long l = low(handle);
+		int i = slot(h, l);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (high[i] == h && low[i] == l) {
+				V previous = (V) values[i];
+				shiftBack(i);
+				size--;
+				return previous;
+			}
+		}
+		return null;
+	}
+
+	// Closes the gap at free by moving back the entries of the probe sequence after it
+	// that can no longer be reached from their home slot
+	private void shiftBack(int free) {
+		int i = free;
+		while (true) {
+			i = (i + 1) & mask;
+			if (values[i] == null) {
+				break;
+			}
+			int home = slot(high[i], low[i]);
+			// the entry stays if its home lies cyclically in (free, i]
+			if (free <= i ? (free < home && home <= i) : (free < home || home <= i)) {
+				continue;
+			}
+			high[free] = high[i];
+			low[free] = low[i];
+			values[free] = values[i];
+			free = i;
+		}
+		values[free] = null;
+	}
+
+	private void grow() {
+		long[] oldHigh = high;
+		long[] oldLow = low;
+		Object[] oldValues = values;
+		allocate(values.length * 2);
+		for (int j = 0; j < oldValues.length; j++) {
+			if (oldValues[j] == null) {
+				continue;
+			}
+			int i = slot(oldHigh[j], oldLow[j]);
+			while (values[i] != null) {
+				i = (i + 1) & mask;
+			}
+			high[i] = oldHigh[j];
+			low[i] = oldLow[j];
+			values[i] = oldValues[j];
+		}
+	}
+
+	private void allocate(int capacity) {
+		high = new long[capacity];
+		low = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		resizeAt = capacity / 2;
+	}
+
+	private int slot(long h, long l) {
+		long x = h * 0x9E3779B97F4A7C15L ^ l;
+		x ^= x >>> 33;
+		x *= 0xff51afd7ed558ccdL;
+		x ^= x >>> 33;
+		return (int) x & mask;
+	}
+
+	private static long high(InstanceHandle_t handle) {
+		return bytes(handle.value, 0);
+	}
+
+	private static long low(InstanceHandle_t handle) {
+		return bytes(handle.value, HANDLE_SIZE / 2);
+	}
+
+	private static long bytes(byte[] value, int offset) {
+		long x = 0;
+		for (int i = offset; i < offset + HANDLE_SIZE / 2; i++) {
+			x = (x << 8) | (value[i] & 0xff);
+		}
+		return x;
+	}
+}
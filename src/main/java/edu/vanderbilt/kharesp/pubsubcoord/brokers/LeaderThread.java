@@ -1,20 +1,62 @@
 package edu.vanderbilt.kharesp.pubsubcoord.brokers;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorOp;
+import org.apache.curator.framework.api.transaction.CuratorTransactionResult;
+import org.apache.curator.framework.api.transaction.OperationType;
 import org.apache.curator.framework.recipes.cache.ChildData;
 import org.apache.curator.framework.recipes.cache.PathChildrenCache;
 import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache.StartMode;
 import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.utils.ZKPaths;
 import org.apache.curator.framework.recipes.leader.LeaderLatch;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
 public class LeaderThread implements Runnable {
+	// Time window over which new topics are collected before their placement
+	// is committed in a single ZK transaction
+	private static final long PLACEMENT_WINDOW_MS = Long.getLong("pubsubcoord.placement.window_ms", 50);
+	// Upper bound on topics committed per transaction (keeps the multi request
+	// well below jute.maxbuffer)
+	private static final int PLACEMENT_MAX_BATCH = Integer.getInteger("pubsubcoord.placement.max_batch", 500);
+	// Wait before retrying the topics of a failed transaction, doubled on each consecutive
+	// failure up to PLACEMENT_RETRY_MAX_MS, so that a persistent failure is not retried in a loop
+	private static final long PLACEMENT_RETRY_MIN_MS = Long.getLong("pubsubcoord.placement.retry_min_ms", 100);
+	private static final long PLACEMENT_RETRY_MAX_MS = Long.getLong("pubsubcoord.placement.retry_max_ms", 10000);
+	// Placement policy: "count" (the default) balances brokers by number of assigned topics,
+	// "traffic" weighs brokers by the load they report under /load, and "hash" leaves
+	// placement to each broker (see HashPlacement)
+	private static final String PLACEMENT_POLICY = System.getProperty("pubsubcoord.placement", "count");
+	// Input+output samples/sec at which a routing broker is considered saturated
+	private static final double RATE_CAPACITY = Double.parseDouble(
+			System.getProperty("pubsubcoord.placement.rate_capacity", "50000"));
+	// Utilization attributed to each topic irrespective of its traffic
+	private static final double TOPIC_COST = Double.parseDouble(
+			System.getProperty("pubsubcoord.placement.topic_cost", "0.001"));
 
 	private final LeaderLatch leaderLatch;
 	private PathChildrenCache topicChildrenCache;
 	private PathChildrenCache rbChildrenCache;
+	private PathChildrenCache loadChildrenCache;
+	// Load of each routing broker, maintained incrementally from rbChildrenCache
+	// and loadChildrenCache events
+	private BrokerLoadIndex loadIndex = new BrokerLoadIndex(PLACEMENT_POLICY.equals("traffic"), RATE_CAPACITY,
+			TOPIC_COST);
+	// Paths of newly created (or orphaned) topics waiting to be assigned to a routing broker
+	private LinkedBlockingDeque<String> pendingTopics = new LinkedBlockingDeque<String>();
+	// Wait before the next retry of a failed transaction; 0 after a transaction succeeds
+	private long retryDelayMs = 0;
+	// Moves topics between live routing brokers to keep their load balanced
+	private TopicRebalancer rebalancer;
 	private CuratorFramework client;
 	private Logger logger;
 	private String rbAddress;
@@ -36,33 +78,123 @@ public class LeaderThread implements Runnable {
 			leaderLatch.await();
 			// Do some work if this routing broker is elected as a leader
 			logger.debug(String.format("Routing broker:%s becomes the leader\n",rbAddress));
+			if (HashPlacement.ENABLED) {
+				logger.debug("Topics are placed by consistent hashing. Leader will not assign topics\n");
+				return;
+			}
 			doWork();
+			assignTopics();
+		} catch (InterruptedException e) {
+			logger.debug(String.format("Leader thread for RB:%s interrupted\n",rbAddress));
 		} catch (Exception e) {
 			logger.error(e.getMessage(),e);
 		}
 	}
 
 	void doWork() {
+		rebalancer = new TopicRebalancer(client, loadIndex);
 		try {
+			// Create a cache for routing brokers (to detect events of creation
+			// and deletion of rb). It is populated before topics are watched so
+			// that placement decisions see all live routing brokers.
+			logger.debug(String.format("Leader thread for RB:%s installing listener for RoutingBroker path:%s\n",
+					rbAddress,CuratorHelper.ROUTING_BROKER_PATH));
+			rbChildrenCache = new PathChildrenCache(client, CuratorHelper.ROUTING_BROKER_PATH, true);
+			addRbChildrenListener(rbChildrenCache);
+			rbChildrenCache.start(StartMode.BUILD_INITIAL_CACHE);
+			for (ChildData rbNode : rbChildrenCache.getCurrentData()) {
+				updateLoad(rbNode);
+			}
+
+			// Create a cache for load aggregates published by routing brokers
+			logger.debug(String.format("Leader thread for RB:%s installing listener for load path:%s\n",
+					rbAddress,CuratorHelper.LOAD_PATH));
+			loadChildrenCache = new PathChildrenCache(client, CuratorHelper.LOAD_PATH, true);
+			addLoadChildrenListener(loadChildrenCache);
+			loadChildrenCache.start(StartMode.BUILD_INITIAL_CACHE);
+			for (ChildData loadNode : loadChildrenCache.getCurrentData()) {
+				updateReport(loadNode);
+			}
+
 			// Create a cache for topics (to detect events of creation and
 			// deletion of topics)
 			logger.debug(String.format("Leader thread for RB:%s installing listener for topics path:%s\n",
 					rbAddress,CuratorHelper.TOPIC_PATH));
 			topicChildrenCache = new PathChildrenCache(client, CuratorHelper.TOPIC_PATH, true);
-			topicChildrenCache.start();
 			addTopicChildrenListener(topicChildrenCache);
-
-			// Create a cache for routing brokers (to detect events of creation
-			// and deletion of rb)
-			logger.debug(String.format("Leader thread for RB:%s installing listener for RoutingBroker path:%s\n",
-					rbAddress,CuratorHelper.ROUTING_BROKER_PATH));
-			rbChildrenCache = new PathChildrenCache(client, CuratorHelper.ROUTING_BROKER_PATH, true);
-			rbChildrenCache.start();
+			topicChildrenCache.start();
 		} catch (Exception e) {
 			logger.error(e.getMessage(),e);
 		}
 	}
 
+	void addRbChildrenListener(PathChildrenCache cache) {
+		cache.getListenable().addListener(new PathChildrenCacheListener() {
+			@Override
+			public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+				switch (event.getType()) {
+				// A routing broker joined or its topic assignment changed
+				case CHILD_ADDED:
+				case CHILD_UPDATED: {
+					updateLoad(event.getData());
+					break;
+				}
+				// A routing broker left. Its topics are placed again on live brokers.
+				case CHILD_REMOVED: {
+					String rb = ZKPaths.getNodeFromPath(event.getData().getPath());
+					BrokerLoadIndex.BrokerLoad removed = loadIndex.get(rb);
+					loadIndex.remove(rb);
+					if (removed != null) {
+						logger.debug(String.format("RB:%s was removed. Reassigning its %d topics\n", rb,
+								removed.topics.size()));
+						for (String topic : removed.topics) {
+							pendingTopics.add(ZKPaths.makePath(CuratorHelper.TOPIC_PATH, topic));
+						}
+					}
+					break;
+				}
+				default:
+					break;
+				}
+			}
+		});
+	}
+
+	void addLoadChildrenListener(PathChildrenCache cache) {
+		cache.getListenable().addListener(new PathChildrenCacheListener() {
+			@Override
+			public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+				switch (event.getType()) {
+				// A routing broker published a new load aggregate
+				case CHILD_ADDED:
+				case CHILD_UPDATED: {
+					updateReport(event.getData());
+					break;
+				}
+				case CHILD_REMOVED: {
+					loadIndex.removeReport(ZKPaths.getNodeFromPath(event.getData().getPath()));
+					break;
+				}
+				default:
+					break;
+				}
+			}
+		});
+	}
+
+	private void updateReport(ChildData loadNode) throws Exception {
+		loadIndex.updateReport(ZKPaths.getNodeFromPath(loadNode.getPath()),
+				CuratorHelper.deserializeLoad(loadNode.getData()));
+	}
+
+	private void updateLoad(ChildData rbNode) throws Exception {
+		String rb = ZKPaths.getNodeFromPath(rbNode.getPath());
+		HashSet<String> topics = CuratorHelper.deserializeTopicSet(rbNode.getData());
+		if (loadIndex.update(rb, topics, rbNode.getStat().getVersion())) {
+			logger.debug(String.format("RB:%s has %d topics\n", rb, topics.size()));
+		}
+	}
+
 	void addTopicChildrenListener(PathChildrenCache cache) {
 		cache.getListenable().addListener(new PathChildrenCacheListener() {
 			@Override
@@ -74,44 +206,27 @@ public class LeaderThread implements Runnable {
 					String topic_path=event.getData().getPath();
 					String topic=topic_path.split("/")[2];
 
-					logger.debug(String.format("Topic:%s created\n",topic));
-
-					// Update this rbChildrenCache (Synchronizing) to get the updated list of RBs
-					rbChildrenCache.rebuild();
-
-					// Find the least loaded routing broker
-					int min_value = Integer.MAX_VALUE,min_index=0;
-
-					for (int i = 0; i < rbChildrenCache.getCurrentData().size(); i++) {
-						ChildData rbNode = rbChildrenCache.getCurrentData().get(i);
-						@SuppressWarnings("unchecked")
-						HashSet<String> rbNodeData = (HashSet<String>) CuratorHelper.deserialize(rbNode.getData());
-						if (rbNodeData.size() < min_value) {
-							min_index = i;
-							min_value = rbNodeData.size();
-						}
-						logger.debug(String.format("RB:%s has %d topics\n",rbNode.getPath(),rbNodeData.size()));
+					// Topic already served by a live routing broker (e.g. the topic
+					// existed before this routing broker became the leader)
+					byte[] data = event.getData().getData();
+					BrokerLoadIndex.BrokerLoad current = data == null ? null : loadIndex.get(new String(data));
+					if (current != null && current.topics.contains(topic)) {
+						logger.debug(String.format("Topic:%s is already assigned to RB:%s\n", topic,
+								current.rbAddress));
+						break;
 					}
+					logger.debug(String.format("Topic:%s created\n",topic));
 
-					//least loaded RB
-					ChildData rbData = rbChildrenCache.getCurrentData().get(min_index);
-					logger.debug(String.format("New topic:%s will be assigned to least loaded RB:%s\n",topic,
-							rbData.getPath()));
-
-					//assign the new topic to the least loaded RB
-					@SuppressWarnings("unchecked")
-					HashSet<String> topicSet = (HashSet<String>) CuratorHelper.deserialize(rbData.getData());
-					topicSet.add(topic);
-					client.setData().forPath(rbData.getPath(), CuratorHelper.serialize(topicSet));
-					
-					logger.debug(String.format("RB:%s locator assigned to topic:%s node\n",
-							rbData.getPath(),topic));
-					//Set topic node's data to chosen RB's address
-					client.setData().forPath(topic_path, rbData.getPath().split("/")[2].getBytes());
+					// Placement is committed in batches by the leader thread
+					pendingTopics.add(topic_path);
 
 					break;
 				}
+				// When a topic is deleted
 				case CHILD_REMOVED: {
+					String topic = ZKPaths.getNodeFromPath(event.getData().getPath());
+					logger.debug(String.format("Topic:%s deleted\n", topic));
+					rebalancer.topicRemoved(topic);
 					break;
 				}
 				default:
@@ -120,4 +235,118 @@ public class LeaderThread implements Runnable {
 			}
 		});
 	}
+
+	// Collects topics created within PLACEMENT_WINDOW_MS and commits their
+	// placement as one ZK transaction. Rebalancing work is done in between.
+	private void assignTopics() throws InterruptedException {
+		List<String> batch = new ArrayList<String>();
+		while (true) {
+			String first = pendingTopics.poll(rebalancer.run(), TimeUnit.MILLISECONDS);
+			if (first == null) {
+				continue;
+			}
+			batch.add(first);
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PLACEMENT_WINDOW_MS);
+			while (batch.size() < PLACEMENT_MAX_BATCH) {
+				String topic_path = pendingTopics.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+				if (topic_path == null) {
+					break;
+				}
+				batch.add(topic_path);
+			}
+			commitBatch(batch);
+			batch.clear();
+		}
+	}
+
+	private void commitBatch(List<String> batch) throws InterruptedException {
+		// topic sets and znode versions of the routing brokers touched by this batch
+		Map<String, HashSet<String>> rbTopics = new HashMap<String, HashSet<String>>();
+		Map<String, Integer> rbVersions = new HashMap<String, Integer>();
+		Map<String, String> assignments = new HashMap<String, String>();
+
+		for (String topic_path : batch) {
+			// Find the least loaded routing broker, including this batch's placements
+			BrokerLoadIndex.BrokerLoad leastLoaded = loadIndex.leastLoaded();
+			if (leastLoaded == null) {
+				logger.error(String.format("No routing broker available for topic:%s\n", topic_path));
+				continue;
+			}
+			String topic = ZKPaths.getNodeFromPath(topic_path);
+			// Build on this batch's own set for the broker, as a cache event for the
+			// unchanged znode may have replaced the tentative entry in the index
+			HashSet<String> topicSet;
+			if (rbTopics.containsKey(leastLoaded.rbAddress)) {
+				topicSet = new HashSet<String>(rbTopics.get(leastLoaded.rbAddress));
+			} else {
+				topicSet = new HashSet<String>(leastLoaded.topics);
+				rbVersions.put(leastLoaded.rbAddress, leastLoaded.version);
+			}
+			topicSet.add(topic);
+			rbTopics.put(leastLoaded.rbAddress, topicSet);
+			loadIndex.update(leastLoaded.rbAddress, topicSet, leastLoaded.version);
+			assignments.put(topic_path, leastLoaded.rbAddress);
+			logger.debug(String.format("New topic:%s will be assigned to least loaded RB:%s with load:%.4f\n",
+					topic, leastLoaded.rbAddress, leastLoaded.load));
+		}
+		if (assignments.isEmpty()) {
+			return;
+		}
+
+		try {
+			List<CuratorOp> ops = new ArrayList<CuratorOp>();
+			// Versioned update of each routing broker's topic set, so that a
+			// concurrent modification aborts the whole transaction
+			for (Map.Entry<String, HashSet<String>> entry : rbTopics.entrySet()) {
+				ops.add(client.transactionOp().setData().withVersion(rbVersions.get(entry.getKey())).forPath(
+						ZKPaths.makePath(CuratorHelper.ROUTING_BROKER_PATH, entry.getKey()),
+						CuratorHelper.serializeTopicSet(entry.getValue())));
+			}
+			//Set topic node's data to chosen RB's address
+			for (Map.Entry<String, String> entry : assignments.entrySet()) {
+				ops.add(client.transactionOp().setData().forPath(entry.getKey(), entry.getValue().getBytes()));
+			}
+			List<CuratorTransactionResult> results = client.transaction().forOperations(ops);
+
+			for (CuratorTransactionResult result : results) {
+				if (result.getType() == OperationType.SET_DATA
+						&& result.getForPath().startsWith(CuratorHelper.ROUTING_BROKER_PATH + "/")) {
+					String rb = ZKPaths.getNodeFromPath(result.getForPath());
+					loadIndex.update(rb, rbTopics.get(rb), result.getResultStat().getVersion());
+				}
+			}
+			logger.debug(String.format("Assigned %d topics to %d RBs in one transaction\n", assignments.size(),
+					rbTopics.size()));
+			retryDelayMs = 0;
+		} catch (Exception e) {
+			retryDelayMs = Math.min(Math.max(2 * retryDelayMs, PLACEMENT_RETRY_MIN_MS), PLACEMENT_RETRY_MAX_MS);
+			logger.error(String.format("Transaction for %d topic assignments failed:%s. Retrying in %d ms\n",
+					assignments.size(), e.getMessage(), retryDelayMs));
+			retryBatch(rbTopics.keySet(), assignments.keySet());
+			// topics created meanwhile are queued behind the retried ones, for the next batch
+			Thread.sleep(retryDelayMs);
+		}
+	}
+
+	// Reloads the routing brokers touched by a failed transaction and queues
+	// its topics for the next batch. Only topics known to be deleted are dropped:
+	// a topic whose existence cannot be checked (e.g. on connection loss) is queued
+	// again as well.
+	private void retryBatch(Iterable<String> rbs, Iterable<String> topic_paths) {
+		for (String rb : rbs) {
+			rebalancer.reload(rb);
+		}
+		for (String topic_path : topic_paths) {
+			try {
+				if (client.checkExists().forPath(topic_path) == null) {
+					logger.debug(String.format("Topic:%s was deleted, not retrying its assignment\n", topic_path));
+					continue;
+				}
+			} catch (Exception e) {
+				logger.error(String.format("Failed to check topic:%s, retrying its assignment:%s\n", topic_path,
+						e.getMessage()));
+			}
+			pendingTopics.addFirst(topic_path);
+		}
+	}
 }
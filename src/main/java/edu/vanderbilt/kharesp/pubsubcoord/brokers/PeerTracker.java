@@ -0,0 +1,61 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+import java.util.HashSet;
+import java.util.function.BiConsumer;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.rti.idl.RTI.RoutingService.Administration.CommandResponse;
+
+// Keeps track of the peer locators added to one participant of a domain route. A peer
+// is added the first time it is acquired, and is on the route once Routing Service
+// answers its add_peer. If the add_peer fails or gets no response the peer is forgotten,
+// so that the next acquire sends it again. Routing Service has no command to remove a
+// peer, so a peer stays on the route once added.
+public class PeerTracker {
+	private final Logger logger;
+	private final RoutingServiceAdministrator rs;
+	private final String domainRouteName;
+	private final boolean isFirstParticipant;
+
+	// peer locators on the domain route
+	private final HashSet<String> peers = new HashSet<String>();
+	// peer locators whose add_peer awaits a response
+	private final HashSet<String> adding = new HashSet<String>();
+
+	public PeerTracker(RoutingServiceAdministrator rs, String domainRouteName, boolean isFirstParticipant) {
+		logger = LogManager.getLogger(this.getClass().getSimpleName());
+		this.rs = rs;
+		this.domainRouteName = domainRouteName;
+		this.isFirstParticipant = isFirstParticipant;
+	}
+
+	// Adds peerLocator to the domain route, unless it is on the route or being added.
+	// Returns true if an add_peer was sent.
+	public synchronized boolean acquire(final String peerLocator) {
+		if (peers.contains(peerLocator) || !adding.add(peerLocator)) {
+			logger.debug(String.format("Peer:%s is on or being added to domainRouteName:%s\n", peerLocator, domainRouteName));
+			return false;
+		}
+		logger.debug(String.format("Adding peer:%s for domainRouteName:%s\n", peerLocator, domainRouteName));
+		rs.addPeer(domainRouteName, peerLocator, isFirstParticipant)
+				.whenComplete(new BiConsumer<CommandResponse, Throwable>() {
+					@Override
+					public void accept(CommandResponse response, Throwable error) {
+						added(peerLocator, error);
+					}
+				});
+		return true;
+	}
+
+	private synchronized void added(String peerLocator, Throwable error) {
+		adding.remove(peerLocator);
+		if (error == null || RoutingServiceAdministrator.alreadyExists(error)) {
+			peers.add(peerLocator);
+		} else {
+			logger.error(String.format("Failed to add peer:%s for domainRouteName:%s, it is added again when next acquired: %s\n",
+					peerLocator, domainRouteName, error.getMessage()));
+		}
+	}
+}
@@ -1,11 +1,19 @@
 package edu.vanderbilt.kharesp.pubsubcoord.brokers;
 
+import java.io.IOException;
 import java.net.*;
 import java.util.*;
-import org.apache.zookeeper.CreateMode;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
-import com.rti.dds.publication.builtin.PublicationBuiltinTopicData;
-import com.rti.dds.subscription.builtin.SubscriptionBuiltinTopicData;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
@@ -17,6 +25,8 @@ import org.apache.log4j.PropertyConfigurator;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
+import com.rti.idl.RTI.RoutingService.Administration.CommandResponse;
+
 public class RoutingBroker {
 	private Logger logger;
 	// Domain Id in which Routing Brokers operate
@@ -33,8 +43,19 @@ public class RoutingBroker {
 	public static final String EB_P2_SUB_BIND_PORT = "8503";
 
 	private static final String DOMAIN_ROUTE_NAME_PREFIX = "RoutingBrokerDomainRoute";
-	private static final String TOPIC_ROUTE_CODE = "107"; // this means letter
-															// 'k'
+	// Longest time a topic moved to another routing broker keeps being routed here while
+	// waiting for the new routing broker to route it. Longer than the backoff of a failing
+	// session create, so that the new topic session is up before this one is deleted.
+	private static final long MIGRATION_DRAIN_MS = Long.getLong("pubsubcoord.rebalance.drain_ms", 60000);
+	// Delay before a failed topic session create is retried, doubled on each further
+	// failure up to CREATE_RETRY_MAX_MS
+	private static final long CREATE_RETRY_MS = Long.getLong("pubsubcoord.rb.create_retry_ms", 1000);
+	private static final long CREATE_RETRY_MAX_MS = Long.getLong("pubsubcoord.rb.create_retry_max_ms", 30000);
+	// Number of locks topics are striped over
+	private static final int TOPIC_LOCK_STRIPES = Integer.getInteger("pubsubcoord.rb.lock_stripes", 64);
+	// Number of threads handling /topics events, each for a fixed subset of topics
+	private static final int EVENT_THREADS = Integer.getInteger("pubsubcoord.rb.event_threads",
+			Runtime.getRuntime().availableProcessors());
 
 	private RoutingServiceAdministrator rs = null;
 	private String rbAddress;
@@ -46,29 +67,46 @@ public class RoutingBroker {
 
 	// Curator node cache for this routing broker's znode under /routingBroker
 	private NodeCache rbNodeCache = null;
-
-	// Curator path children cache for publishers of an assigned topic t under
-	// /topics/t/pub
-	private HashMap<String, PathChildrenCache> topic_publishersChildrenCache_map = new HashMap<String, PathChildrenCache>();
-	// Curator path children cache for subscribers of an assigned topic t under
-	// /topics/t/sub
-	private HashMap<String, PathChildrenCache> topic_subChildrenCache_map = new HashMap<String, PathChildrenCache>();
-
-	// Map for keeping track of active topics in EB domains interfacing with
-	// RB_P1_BIND_PORT
-	private HashMap<String, HashSet<String>> p1_eb_topics_map = new HashMap<>();
-	// Map for keeping track of active topics in EB domains interfacing with
-	// RB_P2_BIND_PORT
-	private HashMap<String, HashSet<String>> p2_eb_topics_map = new HashMap<>();
-
-	// Map for keeping track of active subscribing domains for a topic
-	private HashMap<String, Set<String>> topic_subscribingDomains = new HashMap<>();
-	private HashMap<String, Set<String>> topic_publishingDomains = new HashMap<>();
-
-	// Used for managing topics assigned to this routing broker
-	private HashSet<String> subscribedTopics = new HashSet<String>();
-	private HashSet<String> publishedTopics = new HashSet<String>();
-	private HashSet<String> topicRoutesList = new HashSet<String>();
+	// Hash placement mode: ring of live routing brokers
+	private volatile HashPlacement hashPlacement = null;
+	// Publishes this routing broker's load under /load for traffic-aware placement
+	private BrokerLoadReporter loadReporter = null;
+
+	// Hash placement mode: cache of the topic znodes /topics/t, without their children
+	private PathChildrenCache topicsCache = null;
+	// Curator tree caches of /topics/t/pub and /topics/t/sub for each topic t assigned to
+	// this routing broker, so that only the domains of assigned topics are watched
+	private ConcurrentHashMap<String, TreeCache> topicCaches = new ConcurrentHashMap<String, TreeCache>();
+	// Runs the znode reads and events of all topic caches, instead of a thread per cache
+	private ExecutorService cacheExecutor = Executors.newSingleThreadExecutor();
+	// Single threaded executors handling topic events, so that events for a
+	// topic are handled in order and events for other topics in parallel
+	private ExecutorService[] eventExecutors = new ExecutorService[EVENT_THREADS];
+
+	// EB domains added as peers interfacing with RB_P1_BIND_PORT
+	private PeerTracker p1Peers = null;
+	// EB domains added as peers interfacing with RB_P2_BIND_PORT
+	private PeerTracker p2Peers = null;
+
+	// Routing state of each topic assigned to this routing broker. Changes to
+	// a topic's state are serialized on the topic's lock stripe.
+	// Lock order: RoutingBroker.this before a topic stripe.
+	private ConcurrentHashMap<String, TopicState> topicStates = new ConcurrentHashMap<String, TopicState>();
+	private final Object[] topicLocks = new Object[TOPIC_LOCK_STRIPES];
+
+	// Topics removed from this routing broker's topic set that are still routed
+	// until another routing broker routes them or their drain period expires
+	private ConcurrentHashMap<String, Drain> drainingTopics = new ConcurrentHashMap<String, Drain>();
+	// Runs the ends of drain periods, the retries of failed session creates and the
+	// updates of /routed znodes
+	private ScheduledExecutorService drainExecutor = Executors.newSingleThreadScheduledExecutor();
+
+	// A topic being drained: the end of its drain period, and the cache of the
+	// routing brokers that route it
+	private static class Drain {
+		ScheduledFuture<?> timeout;
+		PathChildrenCache routedCache;
+	}
 
 	public RoutingBroker(String zkConnector, boolean emulated_broker) {
 		// configure logger
@@ -76,6 +114,12 @@ public class RoutingBroker {
 		// ZK server address
 		this.zkConnector = zkConnector;
 		this.emulated_broker = emulated_broker;
+		for (int i = 0; i < topicLocks.length; i++) {
+			topicLocks[i] = new Object();
+		}
+		for (int i = 0; i < eventExecutors.length; i++) {
+			eventExecutors[i] = Executors.newSingleThreadExecutor();
+		}
 
 		try {
 			rbAddress = InetAddress.getLocalHost().getHostAddress();
@@ -108,6 +152,8 @@ public class RoutingBroker {
 		// Create domain route between RB_P1_BIND_PORT and RB_P2_BIND_PORT
 		domainRouteName = DOMAIN_ROUTE_NAME_PREFIX + "@" + rbAddress;
 		createDomainRoute();
+		p1Peers = new PeerTracker(rs, domainRouteName, true);
+		p2Peers = new PeerTracker(rs, domainRouteName, false);
 
 		// Connect to ZK
 		client = CuratorFrameworkFactory.newClient(zkConnector, new ExponentialBackoffRetry(1000, 3));
@@ -130,18 +176,41 @@ public class RoutingBroker {
 						CuratorHelper.TOPIC_PATH, rbAddress, CuratorHelper.TOPIC_PATH));
 				client.create().withMode(CreateMode.PERSISTENT).forPath(CuratorHelper.TOPIC_PATH, new byte[0]);
 			}
-			// Create a NodeCache for this routing broker
-			rbNodeCache = new NodeCache(client, CuratorHelper.ROUTING_BROKER_PATH + "/" + rbAddress);
-			rbNodeCache.start();
-			// Install listner on this RB NodeCache to listen for topic
-			// assignments
-			addRbNodeListener(rbNodeCache);
+			if (client.checkExists().forPath(CuratorHelper.LOAD_PATH) == null) {
+				logger.debug(String.format("zk path:%s does not exist. RB:%s will create zk path:%s\n",
+						CuratorHelper.LOAD_PATH, rbAddress, CuratorHelper.LOAD_PATH));
+				client.create().withMode(CreateMode.PERSISTENT).forPath(CuratorHelper.LOAD_PATH, new byte[0]);
+			}
+			// Start reporting this routing broker's load
+			loadReporter = new BrokerLoadReporter(client, rbAddress, domainRouteName);
+			new Thread(loadReporter).start();
+
+			if (HashPlacement.ENABLED) {
+				// Cache topic names, from which the topics of this routing broker are hashed
+				topicsCache = new PathChildrenCache(client, CuratorHelper.TOPIC_PATH, false, false, cacheExecutor);
+				addTopicsListener(topicsCache);
+				topicsCache.start(PathChildrenCache.StartMode.POST_INITIALIZED_EVENT);
+			}
+
+			if (!HashPlacement.ENABLED) {
+				// Create a NodeCache for this routing broker
+				rbNodeCache = new NodeCache(client, CuratorHelper.ROUTING_BROKER_PATH + "/" + rbAddress);
+				rbNodeCache.start();
+				// Install listner on this RB NodeCache to listen for topic
+				// assignments
+				addRbNodeListener(rbNodeCache);
+			}
 
 			// Create znode with ephemeral mode for this routing broker
 			logger.debug(String.format("Creating znode for this routing broker:%s\n", rbAddress));
 			HashSet<String> topicSet = new HashSet<String>();
 			client.create().withMode(CreateMode.EPHEMERAL).forPath(
-					ZKPaths.makePath(CuratorHelper.ROUTING_BROKER_PATH, rbAddress), CuratorHelper.serialize(topicSet));
+					ZKPaths.makePath(CuratorHelper.ROUTING_BROKER_PATH, rbAddress), CuratorHelper.serializeTopicSet(topicSet));
+
+			if (HashPlacement.ENABLED) {
+				logger.debug(String.format("RB:%s computes its topics by consistent hashing\n", rbAddress));
+				startHashPlacement();
+			}
 
 			// Create a thread for leader election and some work done by a
 			// leader
@@ -153,7 +222,17 @@ public class RoutingBroker {
 		} catch (Exception e) {
 			logger.error(e.getMessage(), e);
 		} finally {
+			drainExecutor.shutdownNow();
+			for (ExecutorService executor : eventExecutors) {
+				executor.shutdownNow();
+			}
 			CloseableUtils.closeQuietly(rbNodeCache);
+			CloseableUtils.closeQuietly(topicsCache);
+			for (TreeCache cache : topicCaches.values()) {
+				CloseableUtils.closeQuietly(cache);
+			}
+			cacheExecutor.shutdownNow();
+			CloseableUtils.closeQuietly(hashPlacement);
 			CloseableUtils.closeQuietly(client);
 		}
 
@@ -163,150 +242,246 @@ public class RoutingBroker {
 		cache.getListenable().addListener(new NodeCacheListener() {
 			@Override
 			public void nodeChanged() throws Exception {
-				@SuppressWarnings("unchecked")
 				// Obtain updated set of topics assigned to this routing broker
-				HashSet<String> topicSet = (HashSet<String>) CuratorHelper
-						.deserialize(cache.getCurrentData().getData());
+				HashSet<String> topicSet = CuratorHelper.deserializeTopicSet(cache.getCurrentData().getData());
 
 				logger.debug(String.format("Number of topics assigned to RB:%s is %d\n", rbAddress, topicSet.size()));
+				loadReporter.setTopicCount(topicSet.size());
 
-				for (String topic : topicSet) {
-					// For a new topic t, register path children listeners for
-					// /topics/t/pub and /topics/t/sub
-					if (!topic_publishersChildrenCache_map.containsKey(topic)) {
-						logger.debug(String.format(
-								"RB:%s was assigned new topic:%s.\n "
-										+ "Installing listeners to be notified when publishers for topic:%s join\n",
-								rbAddress, topic, topic));
-						String publishersForTopicPath = CuratorHelper.TOPIC_PATH + "/" + topic + "/pub";
-						PathChildrenCache topicPubCache = new PathChildrenCache(client, publishersForTopicPath, true);
-						topicPubCache.start();
-						topic_publishersChildrenCache_map.put(topic, topicPubCache);
-						addPubChildrenListener(topicPubCache);
+				synchronized (RoutingBroker.this) {
+					for (String topic : topicSet) {
+						// Topic moved back while it was draining
+						if (stopDraining(topic)) {
+							undrainTopic(topic);
+						}
+						assignTopic(topic);
 					}
-					if (!topic_subChildrenCache_map.containsKey(topic)) {
-						logger.debug(String.format(
-								"RB:%s was assigned new topic:%s.\n "
-										+ "Installing listeners to be notified when subscribers for topic:%s join\n",
-								rbAddress, topic, topic));
-						String subscribersForTopicPath = CuratorHelper.TOPIC_PATH + "/" + topic + "/sub";
-						PathChildrenCache topicSubCache = new PathChildrenCache(client, subscribersForTopicPath, true);
-						topicSubCache.start();
-						topic_subChildrenCache_map.put(topic, topicSubCache);
-						addSubChildrenListener(topicSubCache);
+					// Topics moved to another routing broker
+					for (String topic : topicStates.keySet()) {
+						if (!topicSet.contains(topic) && !drainingTopics.containsKey(topic)) {
+							drainTopic(topic);
+						}
 					}
 				}
 			}
 		});
 	}
 
-	private void addPubChildrenListener(PathChildrenCache cache) {
-		cache.getListenable().addListener(new PathChildrenCacheListener() {
+	// Keeps routing a topic moved to another routing broker until a routing broker other
+	// than this one has created its topic session, as published under /routed/t, or
+	// MIGRATION_DRAIN_MS have passed. Caller holds the RoutingBroker lock.
+	private void drainTopic(final String topic) {
+		synchronized (lockFor(topic)) {
+			TopicState state = topicStates.get(topic);
+			if (state == null || state.route == TopicState.Route.NO_ROUTE) {
+				// no topic session to keep
+				unassignTopic(topic);
+				return;
+			}
+			state.route = TopicState.Route.DRAINING;
+			setRouted(topic, false);
+		}
+		logger.debug(String.format("Topic:%s was moved from RB:%s. Draining for at most %d ms\n", topic, rbAddress,
+				MIGRATION_DRAIN_MS));
+		Drain drain = new Drain();
+		drain.routedCache = new PathChildrenCache(client, ZKPaths.makePath(CuratorHelper.ROUTED_PATH, topic), false,
+				false, drainExecutor);
+		drain.routedCache.getListenable().addListener(new PathChildrenCacheListener() {
 			@Override
 			public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
-				switch (event.getType()) {
-				// When a new domain with publishers for topic t joins
-				case CHILD_ADDED: {
-					String eb_path = event.getData().getPath();
-					String topic = eb_path.split("/")[2];
-					PublicationBuiltinTopicData publication_builtin_data = (PublicationBuiltinTopicData) CuratorHelper
-							.deserialize(event.getData().getData());
-					String eb_address = eb_path.split("/")[4];
-
-					// Add this publishing domain for this topic to
-					// topic_publishingDomains map
-					if (topic_publishingDomains.containsKey(topic)) {
-						topic_publishingDomains.get(topic).add(eb_address);
+				if (event.getType() == PathChildrenCacheEvent.Type.CHILD_ADDED
+						&& !ZKPaths.getNodeFromPath(event.getData().getPath()).equals(rbAddress)) {
+					logger.debug(String.format("Topic:%s is routed by RB:%s\n", topic,
+							ZKPaths.getNodeFromPath(event.getData().getPath())));
+					endDrain(topic);
+				}
+			}
+		});
+		drain.timeout = drainExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				logger.error(String.format("Topic:%s was not routed by another RB within %d ms\n", topic,
+						MIGRATION_DRAIN_MS));
+				endDrain(topic);
+			}
+		}, MIGRATION_DRAIN_MS, TimeUnit.MILLISECONDS);
+		drainingTopics.put(topic, drain);
+		try {
+			drain.routedCache.start();
+		} catch (Exception e) {
+			logger.error(String.format("Failed to watch routing brokers of topic:%s\n", topic), e);
+		}
+	}
 
-					} else {
-						topic_publishingDomains.put(topic, new HashSet<String>(Arrays.asList(eb_address)));
-					}
-					String eb_locator;
-					if (emulated_broker) {
-						eb_locator = "tcpv4_wan://" + eb_address + ":" + EB_P2_PUB_BIND_PORT;
-					} else {
-						eb_locator = "tcpv4_wan://" + eb_address + ":" + EB_P2_BIND_PORT;
-					}
-					logger.debug(
-							String.format("Publishers for topic:%s discovered in EB:%s domain\n", topic, eb_address));
+	private synchronized void endDrain(String topic) {
+		if (stopDraining(topic)) {
+			unassignTopic(topic);
+		}
+	}
+
+	// Cancels the drain of topic, if it is draining. Caller holds the RoutingBroker lock.
+	private boolean stopDraining(String topic) {
+		final Drain drain = drainingTopics.remove(topic);
+		if (drain == null) {
+			return false;
+		}
+		drain.timeout.cancel(false);
+		// closed after the cache event being handled, if any, as closing cancels it
+		drainExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				CloseableUtils.closeQuietly(drain.routedCache);
+			}
+		});
+		return true;
+	}
 
-					if (!p1_eb_topics_map.containsKey(eb_address)) {
-						p1_eb_topics_map.put(eb_address, new HashSet<String>());
-						p1_eb_topics_map.get(eb_address).add(topic);
-						logger.debug(String.format("Adding eb:%s as peer for RB_P1_BIND_PORT:%s\n", eb_locator,
-								RB_P1_BIND_PORT));
-						rs.addPeer(domainRouteName, eb_locator, true);
+	// Topic moved back to this routing broker while it was draining
+	private void undrainTopic(String topic) {
+		synchronized (lockFor(topic)) {
+			TopicState state = topicStates.get(topic);
+			if (state == null) {
+				return;
+			}
+			if (state.route == TopicState.Route.DRAINING) {
+				state.route = TopicState.Route.ROUTED;
+				setRouted(topic, true);
+			}
+			updateRoute(state);
+		}
+	}
 
+	// Creates or deletes this routing broker's ephemeral /routed/t/rb znode, from which the
+	// routing broker a topic moved from learns that the topic's new session is up. The
+	// znode operations are run in order on drainExecutor.
+	private void setRouted(String topic, final boolean routed) {
+		final String path = ZKPaths.makePath(CuratorHelper.ROUTED_PATH, topic, rbAddress);
+		drainExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (routed) {
+						client.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL).forPath(path);
 					} else {
-						logger.debug(String.format("eb:%s already exists as peer for RB_P1_BIND_PORT:%s\n", eb_locator,
-								RB_P1_BIND_PORT));
-						p1_eb_topics_map.get(eb_address).add(topic);
+						client.delete().forPath(path);
 					}
+				} catch (KeeperException.NodeExistsException | KeeperException.NoNodeException e) {
+					// already as wanted
+				} catch (Exception e) {
+					logger.error(String.format("Failed to %s znode:%s\n", routed ? "create" : "delete", path), e);
+				}
+			}
+		});
+	}
 
-					// if topic route is not created, it needs to be created
-					if (!publishedTopics.contains(topic)) {
-						publishedTopics.add(topic);
-					}
-					// check if subscribers for this topic exist
-					if (subscribedTopics.contains(topic)) {
-						// Create topic route only if it does not already
-						// exist
-						if (!topicRoutesList.contains(topic)) {
-							// topic session is only created if publishers
-							// and subscribers exist in two different
-							// domains
-							Set<String> publishing_domains = topic_publishingDomains.get(topic);
-							Set<String> subscribing_domains = topic_subscribingDomains.get(topic);
-							if (publishing_domains.size() == 1 && subscribing_domains.size() == 1
-									&& publishing_domains.containsAll(subscribing_domains)) {
-								logger.debug(String.format("Publishers and Subscribers for topic:%s exist in same domain. "
-										+ "Will not create topic session.\n",topic));
-							} else {
-								logger.debug(String
-										.format("Both publishers and subscribers for topic:%s exist in distinct domains,"
-												+ " creating Topic Session for topic:%s\n", topic, topic));
-								createTopicSession(publication_builtin_data.topic_name,
-										publication_builtin_data.type_name);
-								topicRoutesList.add(topic);
+	private synchronized void assignTopic(String topic) {
+		if (topicStates.putIfAbsent(topic, new TopicState(topic)) != null) {
+			return;
+		}
+		logger.debug(String.format("RB:%s was assigned new topic:%s\n", rbAddress, topic));
+		// Domains of the topic, both those that joined before it was assigned and later
+		// ones, are delivered as events of its tree cache
+		TreeCache cache = TreeCache.newBuilder(client, ZKPaths.makePath(CuratorHelper.TOPIC_PATH, topic))
+				.setMaxDepth(2).setExecutor(cacheExecutor).build();
+		addTopicTreeListener(cache);
+		topicCaches.put(topic, cache);
+		try {
+			cache.start();
+		} catch (Exception e) {
+			logger.error(String.format("Failed to watch the domains of topic:%s\n", topic), e);
+		}
+	}
+
+	// Stops routing topic t through this routing broker: drops its state and
+	// deletes the topic session
+	private synchronized void unassignTopic(String topic) {
+		logger.debug(String.format("RB:%s is no longer responsible for topic:%s\n", rbAddress, topic));
+		synchronized (lockFor(topic)) {
+			TopicState state = topicStates.remove(topic);
+			if (state != null && state.route != TopicState.Route.NO_ROUTE) {
+				deleteTopicSession(state);
+			}
+		}
+		CloseableUtils.closeQuietly(topicCaches.remove(topic));
+	}
+
+	// Leaderless placement: this routing broker routes the topics that the
+	// consistent hash ring maps to it, and follows ring membership changes
+	private void startHashPlacement() throws Exception {
+		hashPlacement = new HashPlacement(client);
+		hashPlacement.addListener(new HashPlacement.RingChangeListener() {
+			@Override
+			public void ringChanged() {
+				reconcileHashPlacement();
+			}
+		});
+		reconcileHashPlacement();
+	}
+
+	// A topic znode /topics/t was created or deleted
+	private void topicChanged(String topic, boolean exists) {
+		if (!HashPlacement.ENABLED || hashPlacement == null) {
+			return;
+		}
+		synchronized (this) {
+			if (exists && rbAddress.equals(hashPlacement.owner(topic))) {
+				assignTopic(topic);
+			} else if (!exists && topicStates.containsKey(topic)) {
+				unassignTopic(topic);
+			}
+			loadReporter.setTopicCount(topicStates.size());
+		}
+	}
+
+	// Re-evaluates ownership of all topics against the current hash ring
+	private synchronized void reconcileHashPlacement() {
+		HashSet<String> owned = new HashSet<String>();
+		for (ChildData topicNode : topicsCache.getCurrentData()) {
+			String topic = ZKPaths.getNodeFromPath(topicNode.getPath());
+			if (rbAddress.equals(hashPlacement.owner(topic))) {
+				owned.add(topic);
+			}
+		}
+		for (String topic : new HashSet<String>(topicStates.keySet())) {
+			if (!owned.contains(topic)) {
+				unassignTopic(topic);
+			}
+		}
+		for (String topic : owned) {
+			assignTopic(topic);
+		}
+		logger.debug(String.format("Number of topics assigned to RB:%s is %d\n", rbAddress, owned.size()));
+		loadReporter.setTopicCount(owned.size());
+	}
+
+	// Hash placement mode: hands creations and deletions of topic znodes /topics/t to the
+	// event executor of topic t
+	private void addTopicsListener(PathChildrenCache cache) {
+		cache.getListenable().addListener(new PathChildrenCacheListener() {
+			@Override
+			public void childEvent(CuratorFramework client, final PathChildrenCacheEvent event) throws Exception {
+				switch (event.getType()) {
+				case CHILD_ADDED:
+				case CHILD_REMOVED: {
+					final String topic = ZKPaths.getNodeFromPath(event.getData().getPath());
+					executorFor(topic).execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								topicChanged(topic, event.getType() == PathChildrenCacheEvent.Type.CHILD_ADDED);
+							} catch (Exception e) {
+								logger.error(e.getMessage(), e);
 							}
 						}
-					}
+					});
 					break;
 				}
-				case CHILD_REMOVED: {
-					String eb_path = event.getData().getPath();
-					String topic = eb_path.split("/")[2];
-					String eb_address = eb_path.split("/")[4];
-					logger.debug(String.format("EB:%s was removed\n", eb_path));
-
-					// eb_address domain no longer has any publisher for this
-					// topic. Remove it from topic_publishingDomains map
-					if (topic_publishingDomains.containsKey(topic)) {
-						topic_publishingDomains.get(topic).remove(eb_address);
-					}
-
-					PublicationBuiltinTopicData publication_builtin_topic_data = (PublicationBuiltinTopicData) CuratorHelper
-							.deserialize(event.getData().getData());
-
-					PathChildrenCache topic_pub_children_cache = topic_publishersChildrenCache_map.get(topic);
-					topic_pub_children_cache.rebuild();
-
-					if (topic_pub_children_cache.getCurrentData().isEmpty()) {
-						logger.debug(String.format("There are no publishing domains for topic:%s\n", topic));
-						publishedTopics.remove(topic);
-						if (topicRoutesList.contains(topic)) {
-							topicRoutesList.remove(topic);
-							logger.debug(String.format(
-									"Publishing domains for topic:%s do not exist.\n" + "Removing topic session:%s\n",
-									topic, String.format("%s::%sTopicSession", domainRouteName,
-											publication_builtin_topic_data.topic_name)));
-							rs.deleteTopicSession(String.format("%s::%sTopicSession", domainRouteName,
-									publication_builtin_topic_data.topic_name));
-						}
+				case INITIALIZED:
+					logger.debug(String.format("RB:%s loaded the topics\n", rbAddress));
+					if (hashPlacement != null) {
+						reconcileHashPlacement();
 					}
-
 					break;
-				}
 				default:
 					break;
 				}
@@ -314,111 +489,35 @@ public class RoutingBroker {
 		});
 	}
 
-	private void addSubChildrenListener(PathChildrenCache cache) {
-		cache.getListenable().addListener(new PathChildrenCacheListener() {
+	// Hands the tree cache events of domains /topics/t/{pub,sub}/eb of an assigned topic t
+	// to the event executor of topic t
+	private void addTopicTreeListener(TreeCache cache) {
+		cache.getListenable().addListener(new TreeCacheListener() {
 			@Override
-			public void childEvent(CuratorFramework client, PathChildrenCacheEvent event) throws Exception {
+			public void childEvent(CuratorFramework client, final TreeCacheEvent event) throws Exception {
 				switch (event.getType()) {
-				// When a local domain with subscribers for topic t is
-				// discovered
-				case CHILD_ADDED: {
-					String eb_path = event.getData().getPath();
-					String topic = eb_path.split("/")[2];
-					SubscriptionBuiltinTopicData subscription_builtin_data = (SubscriptionBuiltinTopicData) (CuratorHelper
-							.deserialize(event.getData().getData()));
-					String eb_address = eb_path.split("/")[4];
-
-					// Add this subscribing domain for this topic to
-					// topic_subscribingDomains map
-					if (topic_subscribingDomains.containsKey(topic)) {
-						topic_subscribingDomains.get(topic).add(eb_address);
-					} else {
-						topic_subscribingDomains.put(topic, new HashSet<String>(Arrays.asList(eb_address)));
-					}
-
-					String eb_locator;
-					if (emulated_broker) {
-						eb_locator = "tcpv4_wan://" + eb_address + ":" + EB_P2_SUB_BIND_PORT;
-					} else {
-						eb_locator = "tcpv4_wan://" + eb_address + ":" + EB_P2_BIND_PORT;
-					}
-
-					logger.debug(
-							String.format("Subscriber for topic:%s discovered in EB:%s domain\n", topic, eb_address));
-
-					if (!p2_eb_topics_map.containsKey(eb_address)) {
-						p2_eb_topics_map.put(eb_address, new HashSet<String>());
-						p2_eb_topics_map.get(eb_address).add(topic);
-						logger.debug(String.format("Adding eb:%s as peer for RB_P2_BIND_PORT:%s\n", eb_locator,
-								RB_P2_BIND_PORT));
-						rs.addPeer(domainRouteName, eb_locator, false);
-
-					} else {
-						logger.debug(String.format("eb:%s already exists as peer for RB_P2_BIND_PORT:%s\n", eb_locator,
-								RB_P2_BIND_PORT));
-						p2_eb_topics_map.get(eb_address).add(topic);
-					}
-
-					if (!subscribedTopics.contains(topic)) {
-						subscribedTopics.add(topic);
+				case NODE_ADDED:
+				case NODE_REMOVED: {
+					final String[] path = event.getData().getPath().split("/");
+					// only /topics/t/{pub,sub}/eb are domains
+					if (path.length != 5) {
+						break;
 					}
-					// check if publishers for this topic exist
-					if (publishedTopics.contains(topic)) {
-						// Create topic route only if it does not already exist
-						if (!topicRoutesList.contains(topic)) {
-							// topic route is only created if publishers and
-							// subscribers exist in two different domains
-							Set<String> publishing_domains = topic_publishingDomains.get(topic);
-							Set<String> subscribing_domains = topic_subscribingDomains.get(topic);
-
-							if (publishing_domains.size() == 1 && subscribing_domains.size() == 1
-									&& publishing_domains.containsAll(subscribing_domains)) {
-								logger.debug(String.format("Publishers and Subscribers for topic:%s exist in same domain. "
-										+ "Will not create topic session.\n",topic));
-							} else {
-								logger.debug(String
-										.format("Both publishers and subscribers for topic:%s exist in distinct domains,"
-												+ " creating Topic Session for topic:%s\n", topic, topic));
-								createTopicSession(subscription_builtin_data.topic_name,
-										subscription_builtin_data.type_name);
-								topicRoutesList.add(topic);
+					final String topic = path[2];
+					executorFor(topic).execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								if (event.getType() == TreeCacheEvent.Type.NODE_ADDED) {
+									endpointAdded(event.getData(), path[3].equals("pub"));
+								} else {
+									endpointRemoved(event.getData(), path[3].equals("pub"));
+								}
+							} catch (Exception e) {
+								logger.error(e.getMessage(), e);
 							}
 						}
-					}
-					break;
-				}
-				case CHILD_REMOVED: {
-					String eb_path = event.getData().getPath();
-					String topic = eb_path.split("/")[2];
-					String eb_address = eb_path.split("/")[4];
-
-					logger.debug(String.format("EB:%s was removed\n", eb_path));
-
-					// eb_address domain no longer has any subscriber for this
-					// topic. Remove it from topic_subscribingDomains map
-					if (topic_subscribingDomains.containsKey(topic)) {
-						topic_subscribingDomains.get(topic).remove(eb_address);
-					}
-
-					SubscriptionBuiltinTopicData subscription_builtin_topic_data = (SubscriptionBuiltinTopicData) CuratorHelper
-							.deserialize(event.getData().getData());
-
-					PathChildrenCache topic_sub_children_cache = topic_subChildrenCache_map.get(topic);
-					topic_sub_children_cache.rebuild();
-
-					if (topic_sub_children_cache.getCurrentData().isEmpty()) {
-						logger.debug(String.format("There are no subscribing domains for topic:%s\n", topic));
-						subscribedTopics.remove(topic);
-						if (topicRoutesList.contains(topic)) {
-							topicRoutesList.remove(topic);
-							logger.debug(String.format(
-									"Subscribing domains for topic:%s do not exist.\n" + "Removing topic session:%s\n",
-									topic, String.format("%s::%sTopicSession", domainRouteName,
-											subscription_builtin_topic_data.topic_name)));
-							rs.deleteTopicSession(String.format("%s::%sTopicSession", domainRouteName,
-									subscription_builtin_topic_data.topic_name));
-						}
-					}
+					});
 					break;
 				}
 				default:
@@ -428,128 +527,186 @@ public class RoutingBroker {
 		});
 	}
 
+	// A domain with publishers (under /topics/t/pub) or subscribers (under
+	// /topics/t/sub) of topic t joined
+	private void endpointAdded(ChildData eb_node, boolean publishers) {
+		String eb_path = eb_node.getPath();
+		String topic = eb_path.split("/")[2];
+		String eb_address = eb_path.split("/")[4];
+		synchronized (lockFor(topic)) {
+			TopicState state = topicStates.get(topic);
+			if (state == null) {
+				// topic is not assigned to this routing broker
+				return;
+			}
+			boolean added = publishers ? state.publishingDomains.add(eb_address)
+					: state.subscribingDomains.add(eb_address);
+			if (!added) {
+				// already known to this routing broker
+				return;
+			}
+			logger.debug(String.format("EB:%s domain with %s for topic:%s discovered\n",
+					eb_address, publishers ? "publishers" : "subscribers", topic));
+			try {
+				TopicEndpointData endpoint_data = CuratorHelper.deserializeEndpoint(eb_node.getData());
+				state.topic_name = endpoint_data.topic_name;
+				state.type_name = endpoint_data.type_name;
+			} catch (IOException e) {
+				logger.error(String.format("Failed to decode endpoint data of EB:%s\n", eb_path), e);
+			}
+			if (publishers) {
+				if (p1Peers.acquire(pubLocator(eb_address))) {
+					logger.debug(String.format("Adding eb:%s as peer for RB_P1_BIND_PORT:%s\n",
+							pubLocator(eb_address), RB_P1_BIND_PORT));
+				}
+			} else {
+				if (p2Peers.acquire(subLocator(eb_address))) {
+					logger.debug(String.format("Adding eb:%s as peer for RB_P2_BIND_PORT:%s\n",
+							subLocator(eb_address), RB_P2_BIND_PORT));
+				}
+			}
+			updateRoute(state);
+		}
+	}
+
+	// eb_address domain no longer has any publisher (subscriber) for topic t
+	private void endpointRemoved(ChildData eb_node, boolean publishers) {
+		String eb_path = eb_node.getPath();
+		String topic = eb_path.split("/")[2];
+		String eb_address = eb_path.split("/")[4];
+		synchronized (lockFor(topic)) {
+			TopicState state = topicStates.get(topic);
+			if (state == null) {
+				return;
+			}
+			logger.debug(String.format("EB:%s was removed\n", eb_path));
+			if (publishers) {
+				state.publishingDomains.remove(eb_address);
+			} else {
+				state.subscribingDomains.remove(eb_address);
+			}
+			updateRoute(state);
+		}
+	}
+
+	private ExecutorService executorFor(String topic) {
+		return eventExecutors[(topic.hashCode() & 0x7fffffff) % eventExecutors.length];
+	}
+
+	private Object lockFor(String topic) {
+		return topicLocks[(topic.hashCode() & 0x7fffffff) % topicLocks.length];
+	}
+
+	// Creates or deletes the topic session as the publishing and subscribing
+	// domains of a topic change. Caller holds the topic's lock.
+	private void updateRoute(TopicState state) {
+		if (state.route == TopicState.Route.NO_ROUTE) {
+			if (state.needsRoute() && !drainingTopics.containsKey(state.topic)) {
+				logger.debug(String.format("Both publishers and subscribers for topic:%s exist in distinct domains,"
+						+ " creating Topic Session for topic:%s\n", state.topic, state.topic));
+				createTopicSession(state);
+			} else if (state.hasEndpoints()) {
+				logger.debug(String.format("Publishers and Subscribers for topic:%s exist in same domain. "
+						+ "Will not create topic session.\n", state.topic));
+			}
+		} else if (!state.hasEndpoints()) {
+			logger.debug(String.format("Publishing or subscribing domains for topic:%s do not exist.\n"
+					+ "Removing topic session:%s::%sTopicSession\n", state.topic, domainRouteName, state.topic_name));
+			deleteTopicSession(state);
+		}
+	}
+
+	// Locator of the EB domain with publishers at eb_address
+	private String pubLocator(String eb_address) {
+		if (emulated_broker) {
+			return "tcpv4_wan://" + eb_address + ":" + EB_P2_PUB_BIND_PORT;
+		}
+		return "tcpv4_wan://" + eb_address + ":" + EB_P2_BIND_PORT;
+	}
+
+	// Locator of the EB domain with subscribers at eb_address
+	private String subLocator(String eb_address) {
+		if (emulated_broker) {
+			return "tcpv4_wan://" + eb_address + ":" + EB_P2_SUB_BIND_PORT;
+		}
+		return "tcpv4_wan://" + eb_address + ":" + EB_P2_BIND_PORT;
+	}
+
 	private void createDomainRoute() {
 		logger.debug(String.format("Creating domain route:%s for interconnecting domains between:%s and %s",
 				domainRouteName, RB_P1_BIND_PORT, RB_P2_BIND_PORT));
 
-		rs.createDomainRoute("str://\"<domain_route name=\"" + domainRouteName + "\">"
-				+ "<entity_monitoring>"
-				+ "<historical_statistics><up_time>true</up_time></historical_statistics>" 
-				+ "</entity_monitoring>"
-				+ "<participant_1>" 
-				+ "<domain_id>" + WAN_DOMAIN_ID 
-				+ "</domain_id>"
-				+ "<participant_qos>"
-				+ "<database>"
-				+ "<cleanup_period>"
-				+ "<sec>1</sec>"
-				+ "</cleanup_period>"
-				+ "</database>"
-				+ "<transport_builtin><mask>MASK_NONE</mask></transport_builtin>" 
-				+ "<property><value>"
-				+ "<element><name>dds.transport.load_plugins</name><value>dds.transport.TCPv4.tcp1</value></element>"
-				+ "<element><name>dds.transport.TCPv4.tcp1.library</name><value>nddstransporttcp</value></element>"
-				+ "<element><name>dds.transport.TCPv4.tcp1.create_function</name><value>NDDS_Transport_TCPv4_create</value></element>"
-				+ "<element><name>dds.transport.TCPv4.tcp1.parent.classid</name><value>NDDS_TRANSPORT_CLASSID_TCPV4_WAN</value></element>"
-				+ "<element><name>dds.transport.TCPv4.tcp1.public_address</name><value>" 
-				+ rbAddress + ":"+ RB_P1_BIND_PORT 
-				+ "</value></element>"
-				+ "<element><name>dds.transport.TCPv4.tcp1.server_bind_port</name><value>"
-				+ RB_P1_BIND_PORT
-				+ "</value></element>"
-				+ "</value></property>"
-				+ "</participant_qos>"
-				+ "</participant_1>"
-				+ "<participant_2>"
-				+ "<domain_id>" 
-				+ WAN_DOMAIN_ID 
-				+ "</domain_id>" 
-				+ "<participant_qos>"
-				+ "<database>"
-				+ "<cleanup_period>"
-				+ "<sec>1</sec>"
-				+ "</cleanup_period>"
-				+ "</database>"
-				+ "<transport_builtin><mask>MASK_NONE</mask></transport_builtin>"
-				+ "<property><value>"
-				+ "<element><name>dds.transport.load_plugins</name><value>dds.transport.TCPv4.tcp1</value></element>"
-				+ "<element><name>dds.transport.TCPv4.tcp1.library</name><value>nddstransporttcp</value></element>"
-				+ "<element><name>dds.transport.TCPv4.tcp1.create_function</name><value>NDDS_Transport_TCPv4_create</value></element>"
-				+ "<element><name>dds.transport.TCPv4.tcp1.parent.classid</name><value>NDDS_TRANSPORT_CLASSID_TCPV4_WAN</value></element>"
-				+ "<element><name>dds.transport.TCPv4.tcp1.public_address</name><value>"
-				+ rbAddress + ":"+ RB_P2_BIND_PORT
-				+ "</value></element>"
-				+ "<element><name>dds.transport.TCPv4.tcp1.server_bind_port</name><value>" 
-				+ RB_P2_BIND_PORT
-				+ "</value></element>" 
-				+ "</value></property>"
-				+ "</participant_qos>"
-				+ "</participant_2>"
-				+ "</domain_route>\"");
+		rs.createDomainRoute(CommandTemplates.domainRoute(domainRouteName,
+				CommandTemplates.wanParticipant(WAN_DOMAIN_ID, rbAddress, RB_P1_BIND_PORT),
+				CommandTemplates.wanParticipant(WAN_DOMAIN_ID, rbAddress, RB_P2_BIND_PORT)));
+	}
+
+	// Sends the session create; the topic is PENDING until Routing Service responds.
+	// A create answered with "already exists" left a session from an earlier create whose
+	// response was lost, so the topic is routed. On any other failure the create is
+	// retried with backoff. Caller holds the topic's lock.
+	private void createTopicSession(final TopicState state) {
+		logger.debug(String.format("Creating Topic Session for topic:%s\n", state.topic_name));
+		final int generation = ++state.generation;
+		state.route = TopicState.Route.PENDING;
+		rs.createTopicSession(domainRouteName,
+				CommandTemplates.topicSession(CommandTemplates.Session.TOPIC, state.topic_name, state.type_name))
+				.whenComplete(new BiConsumer<CommandResponse, Throwable>() {
+					@Override
+					public void accept(CommandResponse response, Throwable error) {
+						synchronized (lockFor(state.topic)) {
+							if (state.generation != generation) {
+								// session was deleted meanwhile
+								return;
+							}
+							if (error != null && !RoutingServiceAdministrator.alreadyExists(error)) {
+								state.route = TopicState.Route.NO_ROUTE;
+								retryTopicSession(state, generation, error instanceof TimeoutException);
+							} else if (state.route == TopicState.Route.PENDING) {
+								state.create_failures = 0;
+								state.route = TopicState.Route.ROUTED;
+								setRouted(state.topic, true);
+							}
+						}
+					}
+				});
 	}
 
-	private void createTopicSession(String topic_name, String type_name) {
-		logger.debug(String.format("Creating Topic Session for topic:%s\n", topic_name));
-
-		rs.createTopicSession(domainRouteName, 
-				"str://\"<session name=\"" + topic_name + "TopicSession\">"
-				+ "<topic_route name=\"" + topic_name + "TopicRoute\">"
-				+ "<route_types>true</route_types>"
-				+ "<publish_with_original_info>true</publish_with_original_info>"
-				+ "<publish_with_original_timestamp>true</publish_with_original_timestamp>"
-				+ "<input participant=\"1\">"
-				+ "<topic_name>" + topic_name 
-				+ "</topic_name>" 
-				+ "<registered_type_name>"
-				+ type_name 
-				+ "</registered_type_name>"
-				+ "<creation_mode>IMMEDIATE</creation_mode>"
-				+ "<datareader_qos>"
-				+ "<reliability>"
-				+ "<kind>RELIABLE_RELIABILITY_QOS</kind>"
-				+ "</reliability>"
-				+ "<durability>" 
-				+ "<kind>TRANSIENT_LOCAL_DURABILITY_QOS</kind>"
-				+ "</durability>"
-				+ "<history>"
-				+ "<kind>KEEP_ALL_HISTORY_QOS</kind>"
-				+ "</history>"
-				+ "<user_data><value>" 
-				+ TOPIC_ROUTE_CODE
-				+ "</value></user_data>" 
-				+ "</datareader_qos>" 
-				+ "</input>"
-				+ "<output>"
-				+ "<topic_name>"
-				+ topic_name
-				+ "</topic_name>" 
-				+ "<registered_type_name>"
-				+ type_name 
-				+ "</registered_type_name>"
-				+ "<creation_mode>IMMEDIATE</creation_mode>"
-				+ "<datawriter_qos>"
-				+ "<reliability>"
-				+ "<kind>RELIABLE_RELIABILITY_QOS</kind>"
-				+ "</reliability>"
-				+ "<durability>"
-				+ "<kind>TRANSIENT_LOCAL_DURABILITY_QOS</kind>" 
-				+ "</durability>"
-				+ "<history>"
-				+ "<kind>KEEP_ALL_HISTORY_QOS</kind>"
-				+ "</history>"
-				//+ "<lifespan>"
-				//+ "<duration>"
-				//+ "<sec>300</sec>"
-				//+ "<nanosec>0</nanosec>" 
-				//+ "</duration>" 
-				//+ "</lifespan>"
-				+ "<user_data><value>"
-				+ TOPIC_ROUTE_CODE
-				+ "</value></user_data>"
-				+ "</datawriter_qos>"
-				+ "</output>"
-				+ "</topic_route>" 
-				+ "</session>\"");
+	// Schedules the topic's route to be updated again after a failed create. If the create
+	// timed out, Routing Service may have created the session, which is then deleted if the
+	// topic no longer needs a route. Caller holds the topic's lock.
+	private void retryTopicSession(final TopicState state, final int generation, final boolean timedOut) {
+		long delay = Math.min(CREATE_RETRY_MS << Math.min(state.create_failures, 16), CREATE_RETRY_MAX_MS);
+		state.create_failures++;
+		logger.error(String.format("Failed to create topic session for topic:%s, retrying in %d ms\n",
+				state.topic, delay));
+		drainExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (lockFor(state.topic)) {
+					if (topicStates.get(state.topic) != state || state.generation != generation
+							|| state.route != TopicState.Route.NO_ROUTE) {
+						// the route was changed by a later event
+						return;
+					}
+					if (timedOut && !state.needsRoute()) {
+						deleteTopicSession(state);
+					} else {
+						updateRoute(state);
+					}
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	// Caller holds the topic's lock
+	private void deleteTopicSession(TopicState state) {
+		if (state.route == TopicState.Route.ROUTED) {
+			setRouted(state.topic, false);
+		}
+		state.generation++;
+		state.route = TopicState.Route.NO_ROUTE;
+		rs.deleteTopicSession(String.format("%s::%sTopicSession", domainRouteName, state.topic_name));
 	}
 
 }
@@ -1,16 +1,35 @@
 package edu.vanderbilt.kharesp.pubsubcoord.brokers;
 
 import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
+import com.rti.connext.infrastructure.Sample;
 import com.rti.connext.infrastructure.WriteSample;
 import com.rti.connext.requestreply.Requester;
 import com.rti.connext.requestreply.RequesterParams;
 import com.rti.dds.domain.DomainParticipant;
 import com.rti.dds.domain.DomainParticipantFactory;
 import com.rti.dds.domain.DomainParticipantQos;
+import com.rti.dds.infrastructure.Duration_t;
 import com.rti.dds.infrastructure.InstanceHandleSeq;
 import com.rti.dds.infrastructure.StatusKind;
 import com.rti.dds.infrastructure.TransportBuiltinKind;
@@ -18,6 +37,7 @@ import com.rti.idl.RTI.RoutingService.Administration.CommandKind;
 import com.rti.idl.RTI.RoutingService.Administration.CommandRequest;
 import com.rti.idl.RTI.RoutingService.Administration.CommandRequestTypeSupport;
 import com.rti.idl.RTI.RoutingService.Administration.CommandResponse;
+import com.rti.idl.RTI.RoutingService.Administration.CommandResponseKind;
 import com.rti.idl.RTI.RoutingService.Administration.CommandResponseTypeSupport;
 
 public class RoutingServiceAdministrator {
@@ -25,14 +45,40 @@ public class RoutingServiceAdministrator {
 	private static final String REQUEST_TOPIC = "rti/routing_service/administration/command_request";
 	private static final String RESPONSE_TOPIC = "rti/routing_service/administration/command_response";
 	private static final int RS_ADMIN_DOMAIN_ID = 55;
-	private static final String TARGET_ROUTER = "PubSubCoord";
+	// Name of the Routing Service of this host, given to it with -appName by scripts/start_rs.sh.
+	// Each host's Routing Service has its own name, so that commands reach only the local one and
+	// its monitoring data can be told apart from that of the other hosts.
+	static final String ROUTING_SERVICE_NAME = System.getProperty("pubsubcoord.rs.name",
+			"PubSubCoord@" + localHostName());
+	// Maximum number of commands sent to Routing Service and not yet answered
+	private static final int MAX_IN_FLIGHT = Integer.getInteger("pubsubcoord.rs.max_in_flight", 32);
+	// Time to wait for a command response before the command is sent again
+	private static final long REPLY_TIMEOUT_MS = Long.getLong("pubsubcoord.rs.timeout_ms", 5000);
+	// Number of times a delete is sent again after a response timeout. Creates and add_peers are
+	// not sent again, as the lost response may be that of a command Routing Service carried out.
+	private static final int MAX_RETRIES = Integer.getInteger("pubsubcoord.rs.retries", 2);
+	// Commands are held this long so that redundant ones can be folded before they are sent
+	private static final long COALESCE_WINDOW_MS = Long.getLong("pubsubcoord.rs.coalesce_ms", 20);
+	private static final Duration_t REPLY_POLL_PERIOD = new Duration_t(1, 0);
+	private static final Pattern SESSION_NAME = Pattern.compile("<session name=\"([^\"]+)\"");
 
 	private String hostAddress;
 	private String processId;
-	private int invocation = 0;
+	private AtomicInteger invocation = new AtomicInteger(0);
 	private DomainParticipant participant;
 	private Requester<CommandRequest, CommandResponse> requester = null;
 
+	// Commands awaiting a response, keyed by invocation id
+	private ConcurrentHashMap<Integer, PendingCommand> pending = new ConcurrentHashMap<Integer, PendingCommand>();
+	private Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT, true);
+	private ScheduledExecutorService timer;
+	private Thread replyThread;
+
+	// Commands not yet sent, in call order, and the last queued command for each entity key
+	private ArrayList<QueuedCommand> queue = new ArrayList<QueuedCommand>();
+	private HashMap<String, QueuedCommand> queuedByKey = new HashMap<String, QueuedCommand>();
+	private ScheduledExecutorService flusher;
+
 	public RoutingServiceAdministrator(String hostAddress) throws Exception {
 		//Configure logger
 		logger= LogManager.getLogger(this.getClass().getSimpleName());
@@ -74,115 +120,323 @@ public class RoutingServiceAdministrator {
 			DomainParticipantFactory.get_instance().delete_participant(participant);
 			throw e;
 		}
+
+		timer = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("rs-admin-timer"));
+		// sending may block on MAX_IN_FLIGHT, so queued commands are flushed by their own thread
+		flusher = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("rs-admin-flush"));
+		replyThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				receiveReplies();
+			}
+		}, "rs-admin-replies");
+		replyThread.setDaemon(true);
+		replyThread.start();
 	}
 
-	public void removePeer(String domainRouteName,String peerLocator,boolean isFirstParticipant){
-		
+	// Routing Service has no command to remove a peer: peers stay on the domain route until it is deleted
+	public CompletableFuture<CommandResponse> addPeer(String domainRouteName,String peerLocator,boolean isFirstParticipant) {
+		logger.debug(String.format("Adding Peer:%s for domainRouteName:%s at firstParticipant:%s\n",
+				peerLocator,domainRouteName,isFirstParticipant));
+		WriteSample<CommandRequest> request = newRequest(CommandKind.RTI_ROUTING_SERVICE_COMMAND_ADD_PEER);
+		request.getData().command.peer_desc.domain_route_name = domainRouteName;
+		request.getData().command.peer_desc.is_first_participant = isFirstParticipant;
+		request.getData().command.peer_desc.peer_list.add(peerLocator);
+		return enqueue(peerKey(domainRouteName, peerLocator, isFirstParticipant), request);
+	}
+
+	public CompletableFuture<CommandResponse> createDomainRoute(String commandString) {
+		logger.debug(String.format("Creating Domain Route\n"));
+		WriteSample<CommandRequest> request = newRequest(CommandKind.RTI_ROUTING_SERVICE_COMMAND_CREATE);
+		request.getData().command.entity_desc.xml_url.content = commandString;
+		request.getData().command.entity_desc.xml_url.is_final = true;
+		return enqueue(null, request);
+	}
+
+	public CompletableFuture<CommandResponse> createTopicSession(String domainRouteName, String commandString) {
+		logger.debug(String.format("Creating Topic Session\n"));
+		WriteSample<CommandRequest> request = newRequest(CommandKind.RTI_ROUTING_SERVICE_COMMAND_CREATE);
+		request.getData().command.entity_desc.name = domainRouteName;
+		request.getData().command.entity_desc.xml_url.content = commandString;
+		request.getData().command.entity_desc.xml_url.is_final = true;
+		// keyed by the same name deleteTopicSession is called with
+		Matcher session = SESSION_NAME.matcher(commandString);
+		return enqueue(session.find() ? domainRouteName + "::" + session.group(1) : null, request);
 	}
 	
-	public void addPeer(String domainRouteName,String peerLocator,boolean isFirstParticipant) {
-		try {
-			logger.debug(String.format("Adding Peer:%s for domainRouteName:%s at firstParticipant:%s\n",
-					peerLocator,domainRouteName,isFirstParticipant));
+	public CompletableFuture<CommandResponse> deleteTopicSession(String entityName ){
+		logger.debug(String.format("Deleting Topic Session:%s\n", entityName));
+		WriteSample<CommandRequest> request = newRequest(CommandKind.RTI_ROUTING_SERVICE_COMMAND_DELETE);
+		request.getData().command.entity_name=entityName;
+		return enqueue(entityName, request);
+	}
 
-            WriteSample<CommandRequest> request = requester.createRequestSample();
-            request.getData().id.host = hostAddress.hashCode();
-            request.getData().id.app = Integer.parseInt(processId);
-            request.getData().id.invocation = ++invocation;
-            request.getData().target_router = TARGET_ROUTER;
-            request.getData().command._d =
-                    CommandKind.RTI_ROUTING_SERVICE_COMMAND_ADD_PEER;
-            request.getData().command.peer_desc.domain_route_name = domainRouteName;
-            request.getData().command.peer_desc.is_first_participant = isFirstParticipant;
-            request.getData().command.peer_desc.peer_list.add(peerLocator);
+	private WriteSample<CommandRequest> newRequest(CommandKind kind) {
+		WriteSample<CommandRequest> request;
+		synchronized (requester) {
+			request = requester.createRequestSample();
+		}
+		request.getData().id.host = hostAddress.hashCode();
+		request.getData().id.app = Integer.parseInt(processId);
+		request.getData().target_router = ROUTING_SERVICE_NAME;
+		request.getData().command._d = kind;
+		return request;
+	}
 
-            requester.sendRequest(request);
+	// Queues request for COALESCE_WINDOW_MS. Within that window a second command for the same key
+	// and of the same kind is dropped in favour of the queued one, and a delete folds away a queued
+	// create for the same key. Commands with a null key are never folded.
+	private CompletableFuture<CommandResponse> enqueue(String key, WriteSample<CommandRequest> request) {
+		if (COALESCE_WINDOW_MS <= 0) {
+			return submit(request);
+		}
+		CommandKind kind = request.getData().command._d;
+		synchronized (queue) {
+			QueuedCommand last = (key == null) ? null : queuedByKey.get(key);
+			if (last != null && last.kind == kind) {
+				logger.debug(String.format("Dropping duplicate command request:%s for %s\n", kind.name(), key));
+				return last.future;
+			}
+			if (last != null && undoes(kind, last.kind)) {
+				logger.debug(String.format("Folding command requests:%s and %s for %s\n",
+						last.kind.name(), kind.name(), key));
+				queue.remove(last);
+				if (last.previous != null) {
+					queuedByKey.put(key, last.previous);
+				} else {
+					queuedByKey.remove(key);
+				}
+				last.future.complete(coalescedResponse());
+				return CompletableFuture.completedFuture(coalescedResponse());
+			}
+			QueuedCommand command = new QueuedCommand(request, last);
+			queue.add(command);
+			if (key != null) {
+				queuedByKey.put(key, command);
+			}
+			if (queue.size() == 1) {
+				flusher.schedule(new Runnable() {
+					@Override
+					public void run() {
+						flush();
+					}
+				}, COALESCE_WINDOW_MS, TimeUnit.MILLISECONDS);
+			}
+			return command.future;
+		}
+	}
 
-			logger.debug(String.format("Sent request:%s with host_id:%s, app_id:%d, invocation id:%d\n",
-					CommandKind.RTI_ROUTING_SERVICE_COMMAND_ADD_PEER,
-					request.getData().id.host,
-					request.getData().id.app,
-					request.getData().id.invocation));
+	private void flush() {
+		ArrayList<QueuedCommand> commands;
+		synchronized (queue) {
+			commands = queue;
+			queue = new ArrayList<QueuedCommand>();
+			queuedByKey.clear();
+		}
+		for (QueuedCommand command : commands) {
+			CompletableFuture<CommandResponse> sent = submit(command.request);
+			final CompletableFuture<CommandResponse> future = command.future;
+			sent.whenComplete(new BiConsumer<CommandResponse, Throwable>() {
+				@Override
+				public void accept(CommandResponse response, Throwable error) {
+					if (error != null) {
+						future.completeExceptionally(error);
+					} else {
+						future.complete(response);
+					}
+				}
+			});
+		}
+	}
 
-        } catch (Exception e) {
-			logger.error(e.getMessage(),e);
-            throw e;
-        }
+	private static boolean undoes(CommandKind kind, CommandKind queued) {
+		return kind == CommandKind.RTI_ROUTING_SERVICE_COMMAND_DELETE
+				&& queued == CommandKind.RTI_ROUTING_SERVICE_COMMAND_CREATE;
+	}
 
+	private static String peerKey(String domainRouteName, String peerLocator, boolean isFirstParticipant) {
+		return String.format("%s|%s|%s", domainRouteName, peerLocator, isFirstParticipant);
 	}
 
-	public void createDomainRoute(String commandString) {
-		logger.debug(String.format("Creating Domain Route\n"));
+	private CommandResponse coalescedResponse() {
+		CommandResponse response = new CommandResponse();
+		response.kind = CommandResponseKind.RTI_ROUTING_SERVICE_COMMAND_RESPONSE_OK;
+		response.message = "coalesced";
+		return response;
+	}
+
+	// Sends request without waiting for its response. The returned future completes with the
+	// OK response matched on id.invocation, or exceptionally with a CommandFailedException for
+	// any other response and with a TimeoutException if no response arrives.
+	// Blocks while MAX_IN_FLIGHT commands are awaiting a response.
+	private CompletableFuture<CommandResponse> submit(WriteSample<CommandRequest> request) {
+		final PendingCommand command = new PendingCommand(request);
 		try {
-			WriteSample<CommandRequest> request = requester.createRequestSample();
-			request.getData().id.host = hostAddress.hashCode();
-			request.getData().id.app = Integer.parseInt(processId);
-			request.getData().id.invocation = ++invocation;
-			request.getData().target_router = TARGET_ROUTER;
-			request.getData().command._d = CommandKind.RTI_ROUTING_SERVICE_COMMAND_CREATE;
-			request.getData().command.entity_desc.xml_url.content = commandString;
-			request.getData().command.entity_desc.xml_url.is_final = true;
-			requester.sendRequest(request);
-
-			logger.debug(String.format("Sent request:%s with host_id:%s, app_id:%d, invocation id:%d\n",
-					CommandKind.RTI_ROUTING_SERVICE_COMMAND_CREATE.name(),
-					request.getData().id.host,
-					request.getData().id.app,
-					request.getData().id.invocation));
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			command.future.completeExceptionally(e);
+			return command.future;
+		}
+		command.future.whenComplete(new BiConsumer<CommandResponse, Throwable>() {
+			@Override
+			public void accept(CommandResponse response, Throwable error) {
+				if (error != null) {
+					logger.error(String.format("Command request:%s failed: %s\n", command.kind.name(), error.getMessage()));
+				}
+			}
+		});
+		send(command);
+		return command.future;
+	}
 
+	private void send(final PendingCommand command) {
+		CommandRequest data = command.request.getData();
+		final int id = invocation.incrementAndGet();
+		data.id.invocation = id;
+		// the timeout is scheduled first so that a fast response always finds it
+		command.timeout = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (pending.remove(id, command)) {
+					timedOut(command, id);
+				}
+			}
+		}, REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		pending.put(id, command);
+		try {
+			synchronized (requester) {
+				requester.sendRequest(command.request);
+			}
 		} catch (Exception e) {
-			logger.error(e.getMessage(),e);
-			throw e;
+			logger.error(e.getMessage(), e);
+			pending.remove(id, command);
+			command.timeout.cancel(false);
+			finish(command, null, e);
+			return;
 		}
+		logger.debug(String.format("Sent command request:%s with host_id:%s, app_id:%d, invocation id:%d\n",
+				command.kind.name(), data.id.host, data.id.app, id));
 	}
 
-	public void createTopicSession(String domainRouteName, String commandString) {
-		logger.debug(String.format("Creating Topic Session\n"));
+	private void timedOut(PendingCommand command, int id) {
+		if (command.kind == CommandKind.RTI_ROUTING_SERVICE_COMMAND_DELETE && command.attempts < MAX_RETRIES) {
+			command.attempts++;
+			logger.debug(String.format("No response for command request:%s with invocation id:%d after %d ms, retrying\n",
+					command.kind.name(), id, REPLY_TIMEOUT_MS));
+			send(command);
+		} else {
+			finish(command, null, new TimeoutException(String.format(
+					"no response for invocation id:%d after %d attempts", id, command.attempts + 1)));
+		}
+	}
+
+	// Frees the command's in-flight slot before completing its future, so that callbacks
+	// may block or send further commands without holding the slot
+	private void finish(PendingCommand command, CommandResponse response, Throwable error) {
+		inFlight.release();
+		if (error != null) {
+			command.future.completeExceptionally(error);
+		} else {
+			command.future.complete(response);
+		}
+	}
+
+	private void receiveReplies() {
+		Sample<CommandResponse> reply = requester.createReplySample();
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				if (!requester.receiveReply(reply, REPLY_POLL_PERIOD) || !reply.getInfo().valid_data) {
+					continue;
+				}
+				CommandResponse response = new CommandResponse(reply.getData());
+				PendingCommand command = pending.remove(response.id.invocation);
+				if (command == null) {
+					// response for a command that already timed out and was sent again
+					logger.debug(String.format("Ignoring response for invocation id:%d\n", response.id.invocation));
+					continue;
+				}
+				command.timeout.cancel(false);
+				logger.debug(String.format("Received response:%s for invocation id:%d\n",
+						response.kind, response.id.invocation));
+				if (response.kind != CommandResponseKind.RTI_ROUTING_SERVICE_COMMAND_RESPONSE_OK) {
+					finish(command, null, new CommandFailedException(command.kind, response));
+				} else {
+					finish(command, response, null);
+				}
+			} catch (Exception e) {
+				logger.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	private static String localHostName() {
 		try {
-			WriteSample<CommandRequest> request = requester.createRequestSample();
-			request.getData().id.host = hostAddress.hashCode();
-			request.getData().id.app = Integer.parseInt(processId);
-			request.getData().id.invocation = ++invocation;
-			request.getData().target_router = TARGET_ROUTER;
-			request.getData().command._d = CommandKind.RTI_ROUTING_SERVICE_COMMAND_CREATE;
-			request.getData().command.entity_desc.name = domainRouteName;
-			request.getData().command.entity_desc.xml_url.content = commandString;
-			request.getData().command.entity_desc.xml_url.is_final = true;
-			requester.sendRequest(request);
-
-			logger.debug(String.format("Sent command request:%s with host_id:%s, app_id:%d, invocation id:%d\n",
-					CommandKind.RTI_ROUTING_SERVICE_COMMAND_CREATE.name(),
-					request.getData().id.host,
-					request.getData().id.app,
-					request.getData().id.invocation));
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "localhost";
+		}
+	}
 
-		} catch (Exception e) {
-			logger.error(e.getMessage(),e);
-			throw e;
+	private static ThreadFactory daemonThreadFactory(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	// True if error is Routing Service's answer to a command for an entity that already exists,
+	// as when the response to an earlier identical command was lost
+	static boolean alreadyExists(Throwable error) {
+		return error instanceof CommandFailedException && String
+				.valueOf(((CommandFailedException) error).getResponse().message).toLowerCase().contains("already exist");
+	}
+
+	// A command that Routing Service answered with a response other than OK
+	public static class CommandFailedException extends Exception {
+		private static final long serialVersionUID = 1L;
+		private final CommandResponse response;
+
+		CommandFailedException(CommandKind kind, CommandResponse response) {
+			super(String.format("%s with invocation id:%d answered %s: %s", kind.name(), response.id.invocation,
+					response.kind, response.message));
+			this.response = response;
+		}
+
+		public CommandResponse getResponse() {
+			return response;
 		}
 	}
-	
-	public void deleteTopicSession(String entityName ){
-		logger.debug(String.format("Deleting Topic Session:%s\n", entityName));
-		try{
-			WriteSample<CommandRequest> request = requester.createRequestSample();
-			request.getData().id.host = hostAddress.hashCode();
-			request.getData().id.app = Integer.parseInt(processId);
-			request.getData().id.invocation = ++invocation;
-			request.getData().target_router = TARGET_ROUTER;
-			request.getData().command._d = CommandKind.RTI_ROUTING_SERVICE_COMMAND_DELETE;
-			request.getData().command.entity_name=entityName;
-			requester.sendRequest(request);
-
-			logger.debug(String.format("Sent command request:%s with host_id:%s, app_id:%d, invocation id:%d\n",
-					CommandKind.RTI_ROUTING_SERVICE_COMMAND_DELETE.name(),
-					request.getData().id.host,
-					request.getData().id.app,
-					request.getData().id.invocation));
-			
-		}catch(Exception e){
-			logger.error(e.getMessage(),e);
-			throw e;
+
+	private static class QueuedCommand {
+		final WriteSample<CommandRequest> request;
+		final CommandKind kind;
+		// command queued earlier for the same key, if any
+		final QueuedCommand previous;
+		final CompletableFuture<CommandResponse> future = new CompletableFuture<CommandResponse>();
+
+		QueuedCommand(WriteSample<CommandRequest> request, QueuedCommand previous) {
+			this.request = request;
+			this.kind = request.getData().command._d;
+			this.previous = previous;
+		}
+	}
+
+	private static class PendingCommand {
+		final WriteSample<CommandRequest> request;
+		final CommandKind kind;
+		final CompletableFuture<CommandResponse> future = new CompletableFuture<CommandResponse>();
+		// number of times the command was sent again
+		int attempts = 0;
+		volatile ScheduledFuture<?> timeout;
+
+		PendingCommand(WriteSample<CommandRequest> request) {
+			this.request = request;
+			this.kind = request.getData().command._d;
 		}
 	}
 
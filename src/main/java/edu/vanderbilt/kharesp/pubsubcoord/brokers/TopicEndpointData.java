@@ -0,0 +1,32 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+import com.rti.dds.publication.builtin.PublicationBuiltinTopicData;
+import com.rti.dds.subscription.builtin.SubscriptionBuiltinTopicData;
+
+// Subset of a discovered endpoint's builtin topic data that is stored under
+// /topics/t/pub/eb and /topics/t/sub/eb and consumed by routing brokers
+public class TopicEndpointData {
+	public String topic_name;
+	public String type_name;
+	// ordinal of the endpoint's ReliabilityQosPolicyKind
+	public int reliability_kind;
+	// ordinal of the endpoint's DurabilityQosPolicyKind
+	public int durability_kind;
+
+	public TopicEndpointData(String topic_name, String type_name, int reliability_kind, int durability_kind) {
+		this.topic_name = topic_name;
+		this.type_name = type_name;
+		this.reliability_kind = reliability_kind;
+		this.durability_kind = durability_kind;
+	}
+
+	public static TopicEndpointData fromPublication(PublicationBuiltinTopicData data) {
+		return new TopicEndpointData(data.topic_name, data.type_name,
+				data.reliability.kind.ordinal(), data.durability.kind.ordinal());
+	}
+
+	public static TopicEndpointData fromSubscription(SubscriptionBuiltinTopicData data) {
+		return new TopicEndpointData(data.topic_name, data.type_name,
+				data.reliability.kind.ordinal(), data.durability.kind.ordinal());
+	}
+}
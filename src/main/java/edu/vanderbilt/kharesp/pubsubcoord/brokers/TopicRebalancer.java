@@ -0,0 +1,183 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorOp;
+import org.apache.curator.framework.api.transaction.CuratorTransactionResult;
+import org.apache.curator.framework.api.transaction.OperationType;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+
+// Moves topics from overloaded routing brokers to underloaded ones (e.g. a routing
+// broker that just joined) and drops deleted topics from routing broker topic sets.
+// Runs on the leader thread, which is the only writer of routing broker znodes.
+//
+// A migration moves a topic between the topic sets of two routing brokers and updates
+// the topic's znode in one versioned transaction. The target creates its topic session
+// right away, while the source keeps routing the topic until the target publishes that
+// its session is up, or a drain period expires (see RoutingBroker). Only then does the
+// source delete its session, so delivery continues during the move.
+// Topics of failed routing brokers are not migrated here: the leader places them again
+// like new topics.
+//
+// The load reports of the source and target only show a migration once the source has
+// drained the topic and both have reported since, so the two brokers are left out of
+// further migrations for COOLDOWN_MS, during which the load index moves the topic's
+// estimated share of load from the source to the target.
+class TopicRebalancer {
+	// Upper bound on topic migrations started per second
+	private static final double MIGRATIONS_PER_SEC = Double.parseDouble(
+			System.getProperty("pubsubcoord.rebalance.migrations_per_sec", "5"));
+	// Interval between balance checks when no migration is needed
+	private static final long CHECK_INTERVAL_MS = Long.getLong("pubsubcoord.rebalance.interval_ms", 5000);
+	// A topic is moved only if the load gap between the most and least loaded
+	// brokers exceeds the moved topic's share of load by this factor
+	private static final double IMBALANCE_TOLERANCE = Double.parseDouble(
+			System.getProperty("pubsubcoord.rebalance.tolerance", "0.5"));
+	// Time after a migration during which its source and target are not migrated from or
+	// to: by default one load report interval for the source to drain the topic once the
+	// target routes it, and two more for both brokers to report their load after the drain
+	private static final long COOLDOWN_MS = Long.getLong("pubsubcoord.rebalance.cooldown_ms",
+			3 * Long.getLong("pubsubcoord.load.report_interval_ms", 5000));
+
+	private Logger logger;
+	private CuratorFramework client;
+	private BrokerLoadIndex loadIndex;
+	// deleted topics that must be removed from their routing broker's topic set
+	private ConcurrentLinkedQueue<String> removedTopics = new ConcurrentLinkedQueue<String>();
+	private long nextMigration = 0;
+	// time in ms until which each routing broker is not migrated from or to
+	private HashMap<String, Long> cooldowns = new HashMap<String, Long>();
+
+	TopicRebalancer(CuratorFramework client, BrokerLoadIndex loadIndex) {
+		logger = LogManager.getLogger(this.getClass().getSimpleName());
+		this.client = client;
+		this.loadIndex = loadIndex;
+	}
+
+	void topicRemoved(String topic) {
+		removedTopics.add(topic);
+	}
+
+	// Performs pending work allowed by the migration rate. Returns the time in ms
+	// until it should be called again.
+	long run() {
+		String topic;
+		while ((topic = removedTopics.poll()) != null) {
+			removeTopic(topic);
+		}
+		long now = System.currentTimeMillis();
+		loadIndex.expireTransfers(now);
+		if (now < nextMigration) {
+			return nextMigration - now;
+		}
+		if (migrateOne(now)) {
+			nextMigration = now + (long) (1000 / MIGRATIONS_PER_SEC);
+		} else {
+			nextMigration = now + CHECK_INTERVAL_MS;
+		}
+		return nextMigration - now;
+	}
+
+	private boolean migrateOne(long now) {
+		Iterator<Map.Entry<String, Long>> it = cooldowns.entrySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().getValue() <= now) {
+				it.remove();
+			}
+		}
+		BrokerLoadIndex.BrokerLoad most = loadIndex.mostLoaded(cooldowns.keySet());
+		BrokerLoadIndex.BrokerLoad least = loadIndex.leastLoaded(cooldowns.keySet());
+		if (most == null || most == least || most.topics.isEmpty()) {
+			return false;
+		}
+		double perTopic = most.load / most.topics.size();
+		if (most.load - least.load <= perTopic * (1 + IMBALANCE_TOLERANCE)) {
+			return false;
+		}
+		String topic = most.topics.iterator().next();
+		logger.debug(String.format("Migrating topic:%s from RB:%s (load:%.4f) to RB:%s (load:%.4f)\n", topic,
+				most.rbAddress, most.load, least.rbAddress, least.load));
+
+		HashSet<String> sourceTopics = new HashSet<String>(most.topics);
+		sourceTopics.remove(topic);
+		HashSet<String> targetTopics = new HashSet<String>(least.topics);
+		targetTopics.add(topic);
+		try {
+			List<CuratorOp> ops = new ArrayList<CuratorOp>();
+			ops.add(client.transactionOp().setData().withVersion(least.version).forPath(
+					rbPath(least.rbAddress), CuratorHelper.serializeTopicSet(targetTopics)));
+			ops.add(client.transactionOp().setData().withVersion(most.version).forPath(
+					rbPath(most.rbAddress), CuratorHelper.serializeTopicSet(sourceTopics)));
+			ops.add(client.transactionOp().setData().forPath(ZKPaths.makePath(CuratorHelper.TOPIC_PATH, topic),
+					least.rbAddress.getBytes()));
+			List<CuratorTransactionResult> results = client.transaction().forOperations(ops);
+			cooldowns.put(most.rbAddress, now + COOLDOWN_MS);
+			cooldowns.put(least.rbAddress, now + COOLDOWN_MS);
+			loadIndex.migrated(most, least, now + COOLDOWN_MS);
+			for (CuratorTransactionResult result : results) {
+				if (result.getType() != OperationType.SET_DATA) {
+					continue;
+				}
+				if (result.getForPath().equals(rbPath(least.rbAddress))) {
+					loadIndex.update(least.rbAddress, targetTopics, result.getResultStat().getVersion());
+				} else if (result.getForPath().equals(rbPath(most.rbAddress))) {
+					loadIndex.update(most.rbAddress, sourceTopics, result.getResultStat().getVersion());
+				}
+			}
+		} catch (Exception e) {
+			logger.error(String.format("Migration of topic:%s failed:%s\n", topic, e.getMessage()));
+			reload(most.rbAddress);
+			reload(least.rbAddress);
+		}
+		return true;
+	}
+
+	private void removeTopic(String topic) {
+		for (int attempt = 0; attempt < 3; attempt++) {
+			BrokerLoadIndex.BrokerLoad owner = loadIndex.ownerOf(topic);
+			if (owner == null) {
+				return;
+			}
+			HashSet<String> topics = new HashSet<String>(owner.topics);
+			topics.remove(topic);
+			try {
+				Stat stat = client.setData().withVersion(owner.version).forPath(rbPath(owner.rbAddress),
+						CuratorHelper.serializeTopicSet(topics));
+				loadIndex.update(owner.rbAddress, topics, stat.getVersion());
+				logger.debug(String.format("Removed deleted topic:%s from RB:%s\n", topic, owner.rbAddress));
+				return;
+			} catch (Exception e) {
+				reload(owner.rbAddress);
+			}
+		}
+		logger.error(String.format("Failed to remove deleted topic:%s from its RB\n", topic));
+	}
+
+	// Reloads a routing broker's topic set and znode version into the load index
+	void reload(String rb) {
+		try {
+			Stat stat = new Stat();
+			byte[] data = client.getData().storingStatIn(stat).forPath(rbPath(rb));
+			loadIndex.update(rb, CuratorHelper.deserializeTopicSet(data), stat.getVersion());
+		} catch (KeeperException.NoNodeException e) {
+			loadIndex.remove(rb);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+	}
+
+	private static String rbPath(String rb) {
+		return ZKPaths.makePath(CuratorHelper.ROUTING_BROKER_PATH, rb);
+	}
+}
@@ -0,0 +1,53 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+import java.util.HashSet;
+import java.util.Set;
+
+// Routing state of a topic assigned to a routing broker. Instances are only read
+// and changed while holding the topic's lock in RoutingBroker.
+//
+//   NO_ROUTE -> PENDING    publishing and subscribing domains differ, session create sent
+//   PENDING  -> ROUTED     Routing Service created the session
+//   PENDING  -> NO_ROUTE   session create failed or timed out, retried after a backoff
+//   ROUTED   -> DRAINING   topic moved to another routing broker, session kept until that broker
+//                          routes the topic or the drain period expires
+//   DRAINING -> ROUTED     topic moved back while draining
+//   any      -> NO_ROUTE   no publishing or no subscribing domain left, session deleted
+public class TopicState {
+	public enum Route {
+		NO_ROUTE, PENDING, ROUTED, DRAINING
+	}
+
+	public final String topic;
+	public Route route = Route.NO_ROUTE;
+	// EB domains with publishers and subscribers for this topic
+	public final Set<String> publishingDomains = new HashSet<String>();
+	public final Set<String> subscribingDomains = new HashSet<String>();
+	// topic and type names used for the topic session, from the endpoint data
+	public String topic_name;
+	public String type_name;
+	// incremented for every session create or delete, so that responses
+	// to commands that were superseded are ignored
+	public int generation = 0;
+	// session creates that failed since the last one that succeeded
+	public int create_failures = 0;
+
+	public TopicState(String topic) {
+		this.topic = topic;
+		this.topic_name = topic;
+	}
+
+	public boolean hasEndpoints() {
+		return !publishingDomains.isEmpty() && !subscribingDomains.isEmpty();
+	}
+
+	// A topic session is only needed if publishers and subscribers exist in
+	// two different domains
+	public boolean needsRoute() {
+		if (!hasEndpoints()) {
+			return false;
+		}
+		return !(publishingDomains.size() == 1 && subscribingDomains.size() == 1
+				&& publishingDomains.containsAll(subscribingDomains));
+	}
+}
@@ -0,0 +1,100 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+// Text template with ${name} slots. The template text is parsed once into the
+// literal chunks between slots, so rendering only appends the chunks and the slot
+// values into a buffer sized for the literal text. bind() fills a subset of the
+// slots (e.g. QoS values read at startup) and returns the remaining template.
+public final class XmlTemplate {
+	private static final int SLOT_SIZE_ESTIMATE = 32;
+
+	// literals[i] precedes slot i; the last literal follows the last slot
+	private final String[] literals;
+	// index into names of the value filling each slot
+	private final int[] slots;
+	// distinct slot names in order of first appearance
+	private final String[] names;
+	private final int literalLength;
+
+	private XmlTemplate(ArrayList<String> literals, ArrayList<String> slotNames) {
+		this.literals = literals.toArray(new String[literals.size()]);
+		ArrayList<String> distinct = new ArrayList<String>();
+		slots = new int[slotNames.size()];
+		for (int i = 0; i < slots.length; i++) {
+			int index = distinct.indexOf(slotNames.get(i));
+			if (index < 0) {
+				index = distinct.size();
+				distinct.add(slotNames.get(i));
+			}
+			slots[i] = index;
+		}
+		names = distinct.toArray(new String[distinct.size()]);
+		int length = 0;
+		for (String literal : this.literals) {
+			length += literal.length();
+		}
+		literalLength = length;
+	}
+
+	public static XmlTemplate compile(String text) {
+		ArrayList<String> literals = new ArrayList<String>();
+		ArrayList<String> slotNames = new ArrayList<String>();
+		int start = 0;
+		while (true) {
+			int open = text.indexOf("${", start);
+			if (open < 0) {
+				break;
+			}
+			int close = text.indexOf('}', open);
+			if (close < 0) {
+				throw new IllegalArgumentException(String.format("Unterminated slot at offset %d", open));
+			}
+			literals.add(text.substring(start, open));
+			slotNames.add(text.substring(open + 2, close));
+			start = close + 1;
+		}
+		literals.add(text.substring(start));
+		return new XmlTemplate(literals, slotNames);
+	}
+
+	// Returns the template with the slots named in values filled in
+	public XmlTemplate bind(Map<?, ?> values) {
+		ArrayList<String> boundLiterals = new ArrayList<String>();
+		ArrayList<String> slotNames = new ArrayList<String>();
+		StringBuilder literal = new StringBuilder(literals[0]);
+		for (int i = 0; i < slots.length; i++) {
+			String name = names[slots[i]];
+			Object value = values.get(name);
+			if (value != null) {
+				literal.append(value);
+			} else {
+				boundLiterals.add(literal.toString());
+				slotNames.add(name);
+				literal.setLength(0);
+			}
+			literal.append(literals[i + 1]);
+		}
+		boundLiterals.add(literal.toString());
+		return new XmlTemplate(boundLiterals, slotNames);
+	}
+
+	// Names of the slots still to be filled, in the order render() takes their values
+	public String[] slotNames() {
+		return names.clone();
+	}
+
+	public String render(String... values) {
+		if (values.length != names.length) {
+			throw new IllegalArgumentException(String.format("Template has %d slots, got %d values",
+					names.length, values.length));
+		}
+		StringBuilder buffer = new StringBuilder(literalLength + SLOT_SIZE_ESTIMATE * slots.length);
+		buffer.append(literals[0]);
+		for (int i = 0; i < slots.length; i++) {
+			buffer.append(values[slots[i]]).append(literals[i + 1]);
+		}
+		return buffer.toString();
+	}
+}
@@ -0,0 +1,22 @@
+package edu.vanderbilt.kharesp.pubsubcoord.brokers;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+// Encoding of the data kept in routing broker znodes (assigned topic set),
+// edge broker znodes (endpoint data) and load znodes (broker load aggregate)
+public interface ZnodeCodec {
+
+	byte[] encodeTopicSet(Set<String> topics) throws IOException;
+
+	HashSet<String> decodeTopicSet(byte[] bytes) throws IOException;
+
+	byte[] encodeEndpoint(TopicEndpointData data) throws IOException;
+
+	TopicEndpointData decodeEndpoint(byte[] bytes) throws IOException;
+
+	byte[] encodeLoad(BrokerLoadData data) throws IOException;
+
+	BrokerLoadData decodeLoad(byte[] bytes) throws IOException;
+}
@@ -0,0 +1,222 @@
+package edu.vanderbilt.kharesp.pubsubcoord.clients;
+
+import com.rti.dds.publication.Publisher;
+import com.rti.dds.subscription.Subscriber;
+import com.rti.dds.topic.Topic;
+import com.rti.idl.test.DataSample_64B;
+import com.rti.idl.test.DataSample_64BTypeSupport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.framework.recipes.barriers.DistributedBarrier;
+
+// Runs the publishers and subscribers listed in a manifest in one process, over one
+// participant, one zk client and one set of barriers, instead of a JVM per endpoint.
+// Each manifest line is
+//   pub|sub,topicName,typeName,rate,sampleCount[,endpoints]
+// where rate is in samples/sec (ignored for sub) and endpoints is the number of
+// publishers or subscribers of the line (1 by default). Blank lines and lines starting
+// with # are skipped. Each endpoint registers under zk and, for subscribers, writes its
+// latency log like a ClientPublisher or ClientSubscriber, so the experiment scripts
+// work unchanged. Only typeName DataSample_64B is supported: endpoints of
+// DataSample_64B_ns are run by ClientPublisher and ClientSubscriber.
+public class ClientHost {
+	private static CuratorFramework client;
+	private static DistributedBarrier barrier;
+	private static DistributedBarrier sub_exited_barrier;
+	private static String hostName;
+	private static String region;
+	private static String pid;
+
+	private static class Endpoint {
+		final boolean pub;
+		final String topicName;
+		final String typeName;
+		final double rate;
+		final int sampleCount;
+		final int endpoints;
+
+		Endpoint(String line) {
+			String[] fields = line.split(",");
+			if (fields.length < 5 || !(fields[0].equals("pub") || fields[0].equals("sub"))) {
+				throw new IllegalArgumentException(String.format(
+						"Manifest line:%s is not pub|sub,topicName,typeName,rate,sampleCount[,endpoints]", line));
+			}
+			pub = fields[0].equals("pub");
+			topicName = fields[1].trim();
+			typeName = fields[2].trim();
+			rate = Double.valueOf(fields[3].trim());
+			sampleCount = Integer.valueOf(fields[4].trim());
+			endpoints = fields.length > 5 ? Integer.valueOf(fields[5].trim()) : 1;
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 5) {
+			System.out.println("Usage: ClientHost domainId manifest outdir runId zkConnector");
+			return;
+		}
+		int domainId = Integer.valueOf(args[0]).intValue();
+		String manifest = args[1];
+		String outdir = args[2];
+		String runId = args[3];
+		String zkConnector = args[4];
+
+		List<Endpoint> endpoints;
+		try {
+			endpoints = read_manifest(manifest);
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		for (Endpoint endpoint : endpoints) {
+			if (!endpoint.typeName.equals("DataSample_64B")) {
+				System.out.println(String.format("TypeName:%s not recognized.\nExiting..", endpoint.typeName));
+				return;
+			}
+		}
+
+		client = CuratorFrameworkFactory.newClient(zkConnector, new ExponentialBackoffRetry(1000, 3));
+		client.start();
+		try {
+			hostName=InetAddress.getLocalHost().getHostName();
+			region=hostName.substring(hostName.indexOf('i')+1, hostName.indexOf('-'));
+			pid=ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+
+			barrier = new DistributedBarrier(client, String.format("/experiment/%s/barriers/pub", runId));
+			sub_exited_barrier=new DistributedBarrier(client, String.format("/experiment/%s/barriers/finished", runId));
+			new File(outdir + "/" + runId).mkdirs();
+
+			run_DataSample_64B(domainId, endpoints, outdir, runId);
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			CloseableUtils.closeQuietly(client);
+		}
+	}
+
+	private static List<Endpoint> read_manifest(String manifest) throws Exception {
+		List<Endpoint> endpoints = new ArrayList<Endpoint>();
+		BufferedReader reader = new BufferedReader(new FileReader(manifest));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				endpoints.add(new Endpoint(line));
+			}
+		} finally {
+			reader.close();
+		}
+		return endpoints;
+	}
+
+	private static void run_DataSample_64B(int domainId, List<Endpoint> endpoints, String outdir, String runId) {
+		DefaultParticipant participant = null;
+		HashMap<String, Topic> topics = new HashMap<String, Topic>();
+		List<String> sub_paths = new ArrayList<String>();
+		List<String> pub_paths = new ArrayList<String>();
+		List<LatencyRecorder> recorders = new ArrayList<LatencyRecorder>();
+		List<GenericDataReader<?>> readers = new ArrayList<GenericDataReader<?>>();
+		List<Integer> sampleCounts = new ArrayList<Integer>();
+		List<Thread> senders = new ArrayList<Thread>();
+		try {
+			participant = new DefaultParticipant(domainId);
+			participant.registerType(DataSample_64BTypeSupport.get_instance());
+			Publisher publisher = participant.get_default_publisher();
+			Subscriber subscriber = participant.get_default_subscriber();
+
+			// endpoint number, which keeps the names of endpoints of the same topic apart
+			int id = 0;
+			for (Endpoint endpoint : endpoints) {
+				Topic topic = topics.get(endpoint.topicName);
+				if (topic == null) {
+					topic = participant.create_topic(endpoint.topicName, DataSample_64BTypeSupport.get_instance());
+					topics.put(endpoint.topicName, topic);
+				}
+				for (int i = 0; i < endpoint.endpoints; i++, id++) {
+					String name = String.format("%s_%s_%s_%d", endpoint.topicName, hostName, pid, id);
+					if (endpoint.pub) {
+						GenericDataWriter<DataSample_64B> datawriter = ClientPublisher.createWriter(publisher, topic);
+						senders.add(LoadGenerator.sender(endpoint.topicName, datawriter,
+								Pacer.configured(endpoint.rate), endpoint.sampleCount));
+						String client_path = String.format("/experiment/%s/pub/region_%s/%s/%s", runId, region,
+								hostName, name);
+						client.create().forPath(client_path, new byte[0]);
+						pub_paths.add(client_path);
+					} else {
+						LatencyRecorder recorder = LatencyRecorder.create(outdir + "/" + runId + "/" + name);
+						recorders.add(recorder);
+						sampleCounts.add(endpoint.sampleCount);
+						GenericDataReader<?> datareader = ClientSubscriber.createReader(endpoint.typeName,
+								subscriber, topic, recorder);
+						String client_path = String.format("/experiment/%s/sub/region_%s/%s/%s", runId, region,
+								hostName, name);
+						client.create().forPath(client_path, new byte[0]);
+						sub_paths.add(client_path);
+						readers.add(datareader);
+						ClientSubscriber.startReceiving(datareader);
+					}
+				}
+			}
+			System.out.println(String.format("Client host is running %d publishers and %d subscribers",
+					senders.size(), recorders.size()));
+
+			if (!senders.isEmpty()) {
+				//wait before all publishers have joined to begin publishing
+				barrier.waitOnBarrier();
+				//wait for 30 sec for discovery to finish before publishing
+				System.out.println("publisher will sleep for 30 sec until discovery finishes");
+				Thread.sleep(30000);
+				System.out.println("Publishers will start sending data");
+				for (Thread sender : senders) {
+					sender.start();
+				}
+				for (Thread sender : senders) {
+					sender.join();
+				}
+				System.out.println("Publishers sent all samples");
+			}
+
+			for (int i = 0; i < recorders.size(); i++) {
+				wait_for_data(recorders.get(i), sampleCounts.get(i));
+				readers.get(i).close();
+				client.delete().forPath(sub_paths.get(i));
+			}
+
+			if (!senders.isEmpty()) {
+				//Don't exit until all subscribers have exited
+				sub_exited_barrier.waitOnBarrier();
+				System.out.println("All subscribers have exited. Exiting..");
+				for (String client_path : pub_paths) {
+					client.delete().forPath(client_path);
+				}
+			}
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+		} finally {
+			participant.shutdown();
+		}
+	}
+
+	private static void wait_for_data(LatencyRecorder recorder, int sampleCount) throws InterruptedException {
+		while (recorder.received() < (sampleCount - 1)) {
+			Thread.sleep(1000);
+		}
+		System.out.println(String.format("Subscriber received:%d samples", recorder.received()));
+		recorder.close();
+	}
+}
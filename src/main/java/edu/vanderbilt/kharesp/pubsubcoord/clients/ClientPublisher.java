@@ -2,8 +2,11 @@ package edu.vanderbilt.kharesp.pubsubcoord.clients;
 
 import com.rti.dds.publication.Publisher;
 import com.rti.dds.topic.Topic;
+import com.rti.dds.topic.TypeSupportImpl;
 import com.rti.idl.test.DataSample_64B;
 import com.rti.idl.test.DataSample_64BTypeSupport;
+import com.rti.idl.test.DataSample_64B_ns;
+import com.rti.idl.test.DataSample_64B_nsTypeSupport;
 
 import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
@@ -15,6 +18,16 @@ import org.apache.curator.utils.CloseableUtils;
 import org.apache.curator.framework.recipes.barriers.DistributedBarrier;
 
 public class ClientPublisher {
+	// Samples per batch; 0 sends each sample on its own
+	private static final int BATCH_SAMPLES = Integer.getInteger("pubsubcoord.writer.batch_samples", 0);
+	private static final int BATCH_BYTES = Integer.getInteger("pubsubcoord.writer.batch_bytes", 8192);
+	// Longest time a sample waits in a batch
+	private static final long FLUSH_MS = Long.getLong("pubsubcoord.writer.flush_ms", 10);
+	// Send batches from the middleware's publisher thread and flush them from a dedicated thread
+	private static final boolean ASYNC = Boolean.getBoolean("pubsubcoord.writer.async");
+	// Send rate in samples/sec, which overrides sendInterval when set
+	private static final String RATE = System.getProperty("pubsubcoord.publisher.rate");
+
 	private static CuratorFramework client;
 	private static DistributedBarrier barrier;
 	private static DistributedBarrier sub_exited_barrier;
@@ -22,6 +35,11 @@ public class ClientPublisher {
 	private static String region;
 	private static String pid;
 
+	// Sets the id and send timestamp of the sample written next
+	private interface Stamp<T> {
+		void stamp(T sample, int sample_id);
+	}
+
 	public static void main(String[] args) {
 		if (args.length < 7) {
 			System.out.println(
@@ -43,6 +61,10 @@ public class ClientPublisher {
 			hostName=InetAddress.getLocalHost().getHostName();
 			region=hostName.substring(hostName.indexOf('i')+1, hostName.indexOf('-'));
 			pid=ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+			if (NanoClock.load(client, hostName)) {
+				System.out.println(String.format("Clock offset to the reference host:%d ns, within %d ns",
+						NanoClock.offset(), NanoClock.errorBound()));
+			}
 			
 			barrier = new DistributedBarrier(client, String.format("/experiment/%s/barriers/pub", runId));
 			sub_exited_barrier=new DistributedBarrier(client, String.format("/experiment/%s/barriers/finished", runId));
@@ -50,6 +72,8 @@ public class ClientPublisher {
 			
 			if (typeName.equals("DataSample_64B")) {
 				publish_DataSample_64B(domainId, topicName, sampleCount, sendInterval,runId);
+			} else if (typeName.equals("DataSample_64B_ns")) {
+				publish_DataSample_64B_ns(domainId, topicName, sampleCount, sendInterval,runId);
 			} else {
 				System.out.println(String.format("TypeName:%s not recognized.\nExiting..", typeName));
 				return;
@@ -64,17 +88,71 @@ public class ClientPublisher {
 
 	}
 
+	// DataWriter for topic, batching as configured by the pubsubcoord.writer.* properties
+	static <T> GenericDataWriter<T> createWriter(Publisher publisher, Topic topic) throws Exception {
+		GenericDataWriter<T> datawriter;
+		if (BATCH_SAMPLES>0){
+			datawriter = new GenericDataWriter<T>(publisher,topic,
+					GenericDataWriter.batchingQos(publisher,BATCH_BYTES,BATCH_SAMPLES,FLUSH_MS,ASYNC));
+			if (ASYNC){
+				datawriter.flushAsync(FLUSH_MS,new GenericDataWriter.AckListener(){
+					private int batches=0;
+					@Override
+					public void acknowledged(int samples, long ackLatencyNanos) {
+						if (++batches%100==0){
+							System.out.println(String.format("Batch:%d of %d samples acknowledged in %.3f ms",
+									batches,samples,ackLatencyNanos/1e6));
+						}
+					}
+				});
+			}
+		}else{
+			datawriter = new GenericDataWriter<T>(publisher,topic);
+		}
+		return datawriter;
+	}
+
+	// Sends what is left of the batch being filled and stops the flush thread
+	static void closeWriter(GenericDataWriter<?> datawriter) {
+		if (BATCH_SAMPLES > 0) {
+			datawriter.flush();
+			datawriter.close();
+		}
+	}
+
 	public static void publish_DataSample_64B(int domainId, String topicName, int sampleCount, int sendInterval,String runId) {
+		publish(domainId, topicName, DataSample_64BTypeSupport.get_instance(), new DataSample_64B(),
+				new Stamp<DataSample_64B>() {
+					@Override
+					public void stamp(DataSample_64B sample, int sample_id) {
+						sample.sample_id = sample_id;
+						sample.ts_milisec = System.currentTimeMillis();
+					}
+				}, sampleCount, sendInterval, runId);
+	}
+
+	public static void publish_DataSample_64B_ns(int domainId, String topicName, int sampleCount, int sendInterval,String runId) {
+		publish(domainId, topicName, DataSample_64B_nsTypeSupport.get_instance(), new DataSample_64B_ns(),
+				new Stamp<DataSample_64B_ns>() {
+					@Override
+					public void stamp(DataSample_64B_ns sample, int sample_id) {
+						sample.sample_id = sample_id;
+						sample.ts_nanosec = NanoClock.now();
+					}
+				}, sampleCount, sendInterval, runId);
+	}
+
+	private static <T> void publish(int domainId, String topicName, TypeSupportImpl typeSupport, T instance,
+			Stamp<T> stamp, int sampleCount, int sendInterval, String runId) {
 
 		DefaultParticipant participant = null;
-		DataSample_64B instance = new DataSample_64B();
 
 		try {
 			participant = new DefaultParticipant(domainId);
-			participant.registerType(DataSample_64BTypeSupport.get_instance());
-			Topic topic=participant.create_topic(topicName, DataSample_64BTypeSupport.get_instance());
+			participant.registerType(typeSupport);
+			Topic topic=participant.create_topic(topicName, typeSupport);
 			Publisher publisher = participant.get_default_publisher();
-			GenericDataWriter<DataSample_64B> datawriter = new GenericDataWriter<DataSample_64B>(publisher,topic); 
+			GenericDataWriter<T> datawriter = createWriter(publisher, topic);
 			String client_path=String.format("/experiment/%s/pub/region_%s/%s/%s_%s_%s", runId,region,hostName,topicName,hostName,pid);
 			client.create().forPath(client_path, new byte[0]);
 			//wait before all publishers have joined to begin publishing
@@ -83,20 +161,25 @@ public class ClientPublisher {
             System.out.println("publisher will sleep for 30 sec until discovery finishes");
             Thread.sleep(30000);
             System.out.println("Publisher will start sending data");
+			Pacer pacer = Pacer.configured(RATE != null ? Double.parseDouble(RATE)
+					: sendInterval > 0 ? 1000.0 / sendInterval : 0);
+			pacer.start();
 			for (int count = 0; count < sampleCount; ++count) {
-				instance.sample_id = count;
-				instance.ts_milisec = System.currentTimeMillis();
-				datawriter.write(instance);
-				if(count%500==0){
-					System.out.println("Sent sample:" + count);
-				}
 				try {
-					Thread.sleep(sendInterval);
+					pacer.await();
 				} catch (InterruptedException ix) {
 					System.err.println("INTERRUPTED");
 					break;
 				}
+				stamp.stamp(instance, count);
+				datawriter.write(instance);
+				if(count%500==0){
+					System.out.println("Sent sample:" + count);
+				}
 			}
+			closeWriter(datawriter);
+			System.out.println(String.format("Send slots missed:%d, max send delay:%.3f ms",
+					pacer.missed(), pacer.maxLateNanos() / 1e6));
 			System.out.println("Publisher sent all samples");
 			//Don't exit until all subscribers have exited
 			sub_exited_barrier.waitOnBarrier();
@@ -1,17 +1,20 @@
 package edu.vanderbilt.kharesp.pubsubcoord.clients;
 
 import java.io.File;
-import java.io.PrintWriter;
 import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import com.rti.dds.subscription.SampleInfo;
 import com.rti.dds.subscription.Subscriber;
 import com.rti.dds.topic.Topic;
+import com.rti.dds.topic.TypeSupportImpl;
 import com.rti.idl.test.DataSample_64B;
 import com.rti.idl.test.DataSample_64BTypeSupport;
+import com.rti.idl.test.DataSample_64B_ns;
+import com.rti.idl.test.DataSample_64B_nsTypeSupport;
 
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
@@ -19,9 +22,11 @@ import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.curator.utils.CloseableUtils;
 
 public class ClientSubscriber {
+	// Take samples on a thread of the reader's own, which waits on a WaitSet, instead of the DDS listener thread
+	private static final boolean WAITSET = Boolean.getBoolean("pubsubcoord.subscriber.waitset");
+
 	private static String latencyFile;
-	private static PrintWriter writer;
-	private static int receiveCount = 0;
+	private static LatencyRecorder recorder;
 	private static CuratorFramework client;
 	
 	private static String hostName;
@@ -49,15 +54,20 @@ public class ClientSubscriber {
 			hostName=InetAddress.getLocalHost().getHostName();
 			region=hostName.substring(hostName.indexOf('i')+1, hostName.indexOf('-'));
 			pid=ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+			if (NanoClock.load(client, hostName)) {
+				System.out.println(String.format("Clock offset to the reference host:%d ns, within %d ns",
+						NanoClock.offset(), NanoClock.errorBound()));
+			}
 			String file_name = topicName + "_" + hostName + "_"
-					+pid + ".csv";
+					+pid;
 			new File(outdir + "/" + runId).mkdirs();
 			latencyFile = outdir + "/" + runId + "/" + file_name;
-			writer = new PrintWriter(latencyFile, "UTF-8");
-			writer.write("ts,date,time,id,latency(ms),interarrival time(ms)\n");
+			recorder = LatencyRecorder.create(latencyFile);
 
 			if (typeName.equals("DataSample_64B")) {
 				receive_DataSample_64B(domainId, topicName, sampleCount,runId);
+			} else if (typeName.equals("DataSample_64B_ns")) {
+				receive_DataSample_64B_ns(domainId, topicName, sampleCount,runId);
 			} else {
 				System.out.println(String.format("TypeName:%s not recognized.\nExiting..", typeName));
 				return;
@@ -70,35 +80,73 @@ public class ClientSubscriber {
 
 	}
 
+	// DataReader passing each received sample of typeName to recorder. Samples are recorded
+	// on the thread taking them, not with dispatch(): its workers would only take turns on
+	// the recorder, its queueing would be measured as latency, and spreading samples over
+	// workers reorders them, which breaks interarrival times.
+	static GenericDataReader<?> createReader(String typeName, Subscriber subscriber, Topic topic,
+			final LatencyRecorder recorder) throws Exception {
+		//process() only reads the sample, so it can be delivered without a copy
+		if (typeName.equals("DataSample_64B_ns")) {
+			return new GenericDataReader<DataSample_64B_ns>(subscriber, topic,
+					DataSample_64B_nsTypeSupport.get_instance(), null, GenericDataReader.DeliveryMode.LOANED) {
+				@Override
+				public void process(DataSample_64B_ns sample, SampleInfo info) {
+					recorder.recordNanos(sample.sample_id, sample.ts_nanosec);
+				}
+			};
+		}
+		return new GenericDataReader<DataSample_64B>(subscriber, topic,
+				DataSample_64BTypeSupport.get_instance(), null, GenericDataReader.DeliveryMode.LOANED) {
+			@Override
+			public void process(DataSample_64B sample, SampleInfo info) {
+				recorder.record(sample.sample_id, sample.ts_milisec);
+			}
+		};
+	}
+
+	// Starts delivering samples to reader, on the DDS listener thread or, with
+	// pubsubcoord.subscriber.waitset, on a daemon thread of its own until reader.close()
+	static void startReceiving(GenericDataReader<?> reader) {
+		if (!WAITSET) {
+			reader.receive();
+			return;
+		}
+		ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "reader-waitset");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		reader.receive(executor);
+		executor.shutdown();
+	}
+
 	public static void receive_DataSample_64B(int domainId, String topicName, int sampleCount,String runId) {
+		receive(domainId, topicName, "DataSample_64B", DataSample_64BTypeSupport.get_instance(), sampleCount, runId);
+	}
+
+	public static void receive_DataSample_64B_ns(int domainId, String topicName, int sampleCount,String runId) {
+		receive(domainId, topicName, "DataSample_64B_ns", DataSample_64B_nsTypeSupport.get_instance(), sampleCount,
+				runId);
+	}
+
+	private static void receive(int domainId, String topicName, String typeName, TypeSupportImpl typeSupport,
+			int sampleCount, String runId) {
 		DefaultParticipant participant = null;
 		try {
 			participant = new DefaultParticipant(domainId);
-			participant.registerType(DataSample_64BTypeSupport.get_instance());
-			Topic topic=participant.create_topic(topicName, DataSample_64BTypeSupport.getInstance());
+			participant.registerType(typeSupport);
+			Topic topic=participant.create_topic(topicName, typeSupport);
 			Subscriber subscriber = participant.get_default_subscriber();
-			GenericDataReader<DataSample_64B> datareader = new GenericDataReader<DataSample_64B>(subscriber,
-					topic,DataSample_64BTypeSupport.get_instance()) {
-				private SimpleDateFormat sdf= new SimpleDateFormat("MM/dd/yyyy,HH:mm:ss");
-				private long prev_recv_ts=-1;
-				@Override
-				public void process(DataSample_64B sample,SampleInfo info) {
-					receiveCount += 1;
-					long reception_ts = System.currentTimeMillis();
-					long interarrival_time=prev_recv_ts==-1?0:(reception_ts-prev_recv_ts);
-					prev_recv_ts=reception_ts;
-					if(receiveCount%500==0){
-						System.out.format("Received sample:%d at ts:%d. ts at which sample was sent:%d\n", sample.sample_id,
-							reception_ts, sample.ts_milisec);
-					}
-					long latency = Math.abs(reception_ts - sample.ts_milisec);
-					writer.write(String.format("%d,%s,%d,%d,%d\n",reception_ts,sdf.format(new Date(reception_ts)),sample.sample_id, latency,interarrival_time));
-				}
-			};
+			GenericDataReader<?> datareader = createReader(typeName, subscriber, topic, recorder);
 			String client_path=String.format("/experiment/%s/sub/region_%s/%s/%s_%s_%s", runId,region,hostName,topicName,hostName,pid);
 			client.create().forPath(client_path, new byte[0]);
-			datareader.receive();
+			startReceiving(datareader);
 			wait_for_data(sampleCount);
+			datareader.close();
 			client.delete().forPath(client_path);
 
 		} catch (Exception e) {
@@ -110,16 +158,16 @@ public class ClientSubscriber {
 	}
 
 	public static void wait_for_data(int sampleCount) {
-		while (receiveCount < (sampleCount - 1)) {
+		while (recorder.received() < (sampleCount - 1)) {
 			try {
 				Thread.sleep(1000);
 			} catch (InterruptedException e) {
 				System.out.println("Interrupted");
-				writer.close();
+				recorder.close();
 				break;
 			}
 		}
-		System.out.println(String.format("Subscriber received:%d samples.Exiting..",receiveCount));
-		writer.close();
+		System.out.println(String.format("Subscriber received:%d samples.Exiting..",recorder.received()));
+		recorder.close();
 	}
 }
@@ -0,0 +1,32 @@
+package edu.vanderbilt.kharesp.pubsubcoord.clients;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+// Writes a csv line per sample. Formatting is done on the receiving thread, which
+// adds to the latency of the samples that follow.
+class CsvLatencyRecorder extends LatencyRecorder {
+	private final PrintWriter writer;
+	private final SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy,HH:mm:ss");
+	private long prev_recv_ts = -1;
+
+	CsvLatencyRecorder(String latencyFile) throws Exception {
+		writer = new PrintWriter(latencyFile, "UTF-8");
+		writer.write("ts,date,time,id,latency(ms),interarrival time(ms)\n");
+	}
+
+	@Override
+	protected void record(int sample_id, long ts_nanosec, long reception_ts_nanosec) {
+		long interarrival_time = prev_recv_ts == -1 ? 0 : (reception_ts_nanosec - prev_recv_ts);
+		prev_recv_ts = reception_ts_nanosec;
+		long reception_ts = reception_ts_nanosec / 1000000L;
+		writer.write(String.format("%d,%s,%d,%.3f,%.3f\n", reception_ts, sdf.format(new Date(reception_ts)), sample_id,
+				(reception_ts_nanosec - ts_nanosec) / 1e6, interarrival_time / 1e6));
+	}
+
+	@Override
+	public void close() {
+		writer.close();
+	}
+}
@@ -1,10 +1,17 @@
 package edu.vanderbilt.kharesp.pubsubcoord.clients;
 
+import java.util.Arrays;
+import java.util.concurrent.Executor;
 
+import com.rti.dds.infrastructure.ConditionSeq;
 import com.rti.dds.infrastructure.Copyable;
+import com.rti.dds.infrastructure.Duration_t;
 import com.rti.dds.infrastructure.RETCODE_NO_DATA;
+import com.rti.dds.infrastructure.RETCODE_TIMEOUT;
 import com.rti.dds.infrastructure.ResourceLimitsQosPolicy;
+import com.rti.dds.infrastructure.StatusCondition;
 import com.rti.dds.infrastructure.StatusKind;
+import com.rti.dds.infrastructure.WaitSet;
 import com.rti.dds.subscription.DataReader;
 import com.rti.dds.subscription.DataReaderAdapter;
 import com.rti.dds.subscription.DataReaderQos;
@@ -19,6 +26,26 @@ import com.rti.dds.topic.TypeSupportImpl;
 import com.rti.dds.util.LoanableSequence;
 
 public abstract class GenericDataReader<T extends Copyable> {
+	// Samples taken from the reader at once; LENGTH_UNLIMITED takes all available samples.
+	// This bounds the samples loaned at a time, not the time spent in a listener callback.
+	private static final int MAX_SAMPLES_PER_TAKE = Integer.getInteger("pubsubcoord.reader.max_samples",
+			ResourceLimitsQosPolicy.LENGTH_UNLIMITED);
+	// Time the delivery thread waits for data before checking whether the reader was closed
+	private static final Duration_t WAIT_TIMEOUT = new Duration_t(1, 0);
+
+	// How samples are passed to process()
+	public enum DeliveryMode {
+		// a copy of each sample, which process() may keep
+		COPY,
+		// the sample loaned from the reader, valid only until process() returns;
+		// process() must call copy() for samples it keeps
+		LOANED
+	}
+
+	// Key of a sample for dispatch(): samples with the same key are processed in order
+	public interface KeyExtractor<T> {
+		int key(T sample,SampleInfo info);
+	}
 
 	private TypeSupportImpl typeSupport;
 	private Subscriber subscriber;
@@ -27,6 +54,12 @@ public abstract class GenericDataReader<T extends Copyable> {
 	private DataReaderQos qos;
 	private SampleInfoSeq infoSeq;
 	private LoanableSequence dataSeq;
+	private DeliveryMode deliveryMode = DeliveryMode.COPY;
+	private int maxSamplesPerTake = MAX_SAMPLES_PER_TAKE;
+	private volatile boolean closed = false;
+	// optional stage processing samples on worker threads
+	private KeyedDispatcher<T> dispatcher;
+	private KeyExtractor<T> keyExtractor;
 
 
     public GenericDataReader(Subscriber subscriber,Topic topic,TypeSupportImpl typeSupport) throws Exception {
@@ -43,6 +76,24 @@ public abstract class GenericDataReader<T extends Copyable> {
     	this.qos=qos;
 		initialize();
 	}
+
+    // qos may be null for the default DataReader QoS
+    public GenericDataReader(Subscriber subscriber,Topic topic,TypeSupportImpl typeSupport,DataReaderQos qos,
+    		DeliveryMode deliveryMode) throws Exception {
+    	this.subscriber=subscriber;
+    	this.topic=topic;
+    	this.typeSupport=typeSupport;
+    	this.qos=qos;
+    	this.deliveryMode=deliveryMode;
+		initialize();
+	}
+	
+    // Reader without a DDS DataReader, which only delivers sequences passed to deliver(),
+    // as GenericDataReaderBenchmark does
+    GenericDataReader(TypeSupportImpl typeSupport,DeliveryMode deliveryMode){
+    	this.typeSupport=typeSupport;
+    	this.deliveryMode=deliveryMode;
+    }
 	
 	private void initialize() throws Exception{
 		if(qos==null){
@@ -65,38 +116,147 @@ public abstract class GenericDataReader<T extends Copyable> {
 	
 	private class DataReaderListener extends DataReaderAdapter{
 		public void on_data_available(DataReader reader){
-			take();
+			//data available is not signalled again for samples left in the reader,
+			//so all of them are taken, at most maxSamplesPerTake at a time: the callback
+			//runs until the reader is drained, however large the backlog
+			while (take()==maxSamplesPerTake);
 		}
 	}
 	
+	// Delivers samples to process() on the DDS listener thread. Each callback drains the
+	// reader, so its length is unbounded: a backlog holds up the listener thread until it
+	// is processed. Use receive(Executor) where that is not acceptable.
 	public void receive(){
 		DataReaderListener listener= new DataReaderListener();
 		reader.set_listener(listener, StatusKind.STATUS_MASK_ALL);
 	}
+
+	// Delivers samples to process() on a thread of executor, which waits on a WaitSet
+	// for data, so that a slow process() does not hold up the DDS receive thread or
+	// other readers' listeners. The executor's thread is used until close().
+	public void receive(Executor executor){
+		final WaitSet waitset= new WaitSet();
+		final StatusCondition condition= reader.get_statuscondition();
+		condition.set_enabled_statuses(StatusKind.DATA_AVAILABLE_STATUS);
+		waitset.attach_condition(condition);
+		executor.execute(new Runnable(){
+			@Override
+			public void run() {
+				ConditionSeq active_conditions= new ConditionSeq();
+				try {
+					while (!closed) {
+						try {
+							waitset.wait(active_conditions, WAIT_TIMEOUT);
+						} catch (RETCODE_TIMEOUT timeout) {
+							continue;
+						}
+						while (!closed && take()==maxSamplesPerTake);
+					}
+				} finally {
+					waitset.detach_condition(condition);
+					waitset.delete();
+				}
+			}
+		});
+	}
+
+	// Processes samples on workerCount threads instead of the thread taking them. Samples
+	// with the same key are processed in the order they were taken, by one worker at a time.
+	// Taking pauses while the queue of the next sample's worker holds queueCapacity samples.
+	// Samples are always copied, as they are processed after their loan is returned.
+	// Samples wait in the queues before process(), so it is not meant for measuring latency.
+	// Call before receive().
+	public void dispatch(int workerCount,int queueCapacity,KeyExtractor<T> keyExtractor){
+		this.keyExtractor=keyExtractor;
+		dispatcher=new KeyedDispatcher<T>("reader",workerCount,queueCapacity,new KeyedDispatcher.Handler<T>(){
+			@Override
+			public void handle(T sample, SampleInfo info) {
+				process(sample,info);
+			}
+		});
+	}
+
+	// Keys samples by their instance, for dispatch(). All samples of a keyless type belong
+	// to one instance, and go to one worker: key them by a field of the sample instead.
+	public static <T> KeyExtractor<T> byInstance(){
+		return new KeyExtractor<T>(){
+			@Override
+			public int key(T sample, SampleInfo info) {
+				return Arrays.hashCode(info.instance_handle.value);
+			}
+		};
+	}
+
+	// Stops delivery by receive(Executor) and the dispatch workers
+	public void close(){
+		closed=true;
+		if (dispatcher!=null){
+			dispatcher.close();
+		}
+	}
+
+	// Sets the number of samples taken at once, trading throughput for latency.
+	// LENGTH_UNLIMITED takes all available samples.
+	public void setMaxSamplesPerTake(int maxSamplesPerTake){
+		this.maxSamplesPerTake=maxSamplesPerTake;
+	}
 	
-	@SuppressWarnings("unchecked") 
-	private void  take(){
+	// Takes at most maxSamplesPerTake samples and passes them to process(). Returns the number taken.
+	private int take(){
+		int taken=0;
 		try {
-			reader.take_untyped(dataSeq, infoSeq, ResourceLimitsQosPolicy.LENGTH_UNLIMITED,
+			reader.take_untyped(dataSeq, infoSeq, maxSamplesPerTake,
 					SampleStateKind.ANY_SAMPLE_STATE, ViewStateKind.ANY_VIEW_STATE,
 					InstanceStateKind.ANY_INSTANCE_STATE);
 
-			for (int j = 0; j < dataSeq.size(); ++j) {
-				SampleInfo info=(SampleInfo)infoSeq.get(j);
-				if (info.valid_data) {
-					T sample= (T) dataSeq.get(j);
-					T dataCopy= (T) typeSupport.create_data();
-					dataCopy.copy_from(sample);
-					process(dataCopy,info);
-				}
-			}
+			taken=dataSeq.size();
+			deliver(dataSeq, infoSeq);
 		} catch (RETCODE_NO_DATA noData)
 		{
+		} catch (InterruptedException e) {
+			//the reader is being shut down: the rest of this batch is dropped
+			Thread.currentThread().interrupt();
+			taken=0;
 		} finally {
 			reader.return_loan_untyped(dataSeq, infoSeq);
 		}
+		return taken;
 	}
 	
+	// Passes the valid samples of a taken dataSeq to process(), or to the dispatch workers,
+	// as the delivery mode requires. Package-private so that it can be benchmarked.
+	@SuppressWarnings("unchecked")
+	void deliver(LoanableSequence dataSeq,SampleInfoSeq infoSeq) throws InterruptedException{
+		for (int j = 0; j < dataSeq.size(); ++j) {
+			SampleInfo info=(SampleInfo)infoSeq.get(j);
+			if (info.valid_data) {
+				T sample= (T) dataSeq.get(j);
+				if (dispatcher!=null){
+					SampleInfo infoCopy= new SampleInfo();
+					infoCopy.copy_from(info);
+					dispatcher.dispatch(keyExtractor.key(sample,info),copy(sample),infoCopy);
+				}else if (deliveryMode==DeliveryMode.LOANED){
+					process(sample,info);
+				}else{
+					process(copy(sample),info);
+				}
+			}
+		}
+	}
+
+	// Returns a copy of sample that stays valid after process() returns
+	@SuppressWarnings("unchecked")
+	public T copy(T sample){
+		T dataCopy= (T) typeSupport.create_data();
+		dataCopy.copy_from(sample);
+		return dataCopy;
+	}
+
+	public DeliveryMode getDeliveryMode(){
+		return deliveryMode;
+	}
+
+	// In LOANED mode, sample and info are only valid until this method returns
 	public abstract void process(T sample,SampleInfo info);
    
 }
@@ -1,19 +1,58 @@
 package edu.vanderbilt.kharesp.pubsubcoord.clients;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.rti.dds.infrastructure.InstanceHandle_t;
+import com.rti.dds.infrastructure.PublishModeQosPolicyKind;
+import com.rti.dds.infrastructure.SequenceNumber_t;
 import com.rti.dds.infrastructure.StatusKind;
 import com.rti.dds.publication.DataWriter;
+import com.rti.dds.publication.DataWriterProtocolStatus;
 import com.rti.dds.publication.DataWriterQos;
 import com.rti.dds.publication.Publisher;
 import com.rti.dds.topic.Topic;
 
 public class GenericDataWriter<T> {
+	// Time after which a flushed batch that is still not acknowledged is given up on
+	private static final long ACK_TIMEOUT_SEC = 10;
+	// Period at which the acknowledgment thread polls the writer's protocol status,
+	// which is the resolution of the reported ack latencies
+	private static final long ACK_POLL_MS = 1;
+
+	// Notified by the acknowledgment thread of the time each flushed batch took to be acknowledged
+	public interface AckListener {
+		void acknowledged(int samples, long ackLatencyNanos);
+	}
+
+	// A batch flushed by the flush thread, awaiting acknowledgment
+	private static class FlushedBatch {
+		// sequence number of the last sample of the batch
+		final long last_sn;
+		final int samples;
+		final long flushNanos;
+
+		FlushedBatch(long last_sn, int samples, long flushNanos) {
+			this.last_sn = last_sn;
+			this.samples = samples;
+			this.flushNanos = flushNanos;
+		}
+	}
 
     private Publisher publisher;
     private Topic topic;
     private DataWriter writer;
     private DataWriterQos qos;
     private InstanceHandle_t instance_handle;
+    // samples written since the last flush
+    private AtomicInteger unflushed = new AtomicInteger();
+    // samples written in all, which is the sequence number of the last one
+    private AtomicLong written = new AtomicLong();
+    // batches flushed by flushAsync() and not yet acknowledged, oldest first
+    private ConcurrentLinkedQueue<FlushedBatch> flushed = new ConcurrentLinkedQueue<FlushedBatch>();
+    private volatile boolean closed = false;
 	
 	public GenericDataWriter(Publisher publisher,Topic topic) throws Exception {
 		this.publisher=publisher;
@@ -27,6 +66,26 @@ public class GenericDataWriter<T> {
 		this.qos=qos;
 		initialize();
 	}
+
+	// Default DataWriter QoS of publisher with batching enabled: samples are sent in
+	// batches of up to maxSamples samples or maxBatchBytes bytes, and a batch waits at
+	// most maxFlushDelayMs to fill up. With async, samples are sent by the middleware's
+	// asynchronous publisher thread instead of the writing thread.
+	public static DataWriterQos batchingQos(Publisher publisher,int maxBatchBytes,int maxSamples,
+			long maxFlushDelayMs,boolean async){
+		DataWriterQos qos= new DataWriterQos();
+		publisher.get_default_datawriter_qos(qos);
+		qos.batch.enable=true;
+		qos.batch.max_data_bytes=maxBatchBytes;
+		qos.batch.max_samples=maxSamples;
+		qos.batch.max_flush_delay.sec=(int)(maxFlushDelayMs/1000);
+		qos.batch.max_flush_delay.nanosec=(int)(maxFlushDelayMs%1000)*1000000;
+		if (async){
+			qos.publish_mode.kind=PublishModeQosPolicyKind.ASYNCHRONOUS_PUBLISH_MODE_QOS;
+		}
+		return qos;
+	}
+
 	private void initialize() throws Exception{
 		if(qos==null){
 			writer = publisher.create_datawriter(topic,Publisher.DATAWRITER_QOS_DEFAULT,
@@ -45,6 +104,89 @@ public class GenericDataWriter<T> {
 	
 	public void write(T sample){
 		writer.write_untyped(sample, instance_handle);
+		written.incrementAndGet();
+		unflushed.incrementAndGet();
+	}
+
+	// Sends the samples batched so far
+	public void flush(){
+		unflushed.set(0);
+		writer.flush();
+	}
+
+	// Flushes the written samples every flushIntervalMs from a dedicated thread, so the
+	// writing thread never waits for a batch to be sent. A second thread follows the
+	// acknowledgments of the matched readers in the writer's protocol status, and reports
+	// to listener the time from the flush of each batch until its last sample was
+	// acknowledged, so that waiting for acknowledgments does not delay the next flush and
+	// a batch's latency does not include the batches flushed after it.
+	// Runs until close().
+	public void flushAsync(final long flushIntervalMs,final AckListener listener){
+		Thread flusher= new Thread(new Runnable(){
+			@Override
+			public void run() {
+				while (!closed) {
+					try {
+						Thread.sleep(flushIntervalMs);
+					} catch (InterruptedException e) {
+						return;
+					}
+					int samples=unflushed.getAndSet(0);
+					if (samples==0){
+						continue;
+					}
+					// the samples are counted before they are flushed, so written is at least
+					// the sequence number of the last one
+					long last_sn=written.get();
+					writer.flush();
+					flushed.add(new FlushedBatch(last_sn,samples,System.nanoTime()));
+				}
+			}
+		},"writer-flush");
+		Thread acker= new Thread(new Runnable(){
+			@Override
+			public void run() {
+				DataWriterProtocolStatus status= new DataWriterProtocolStatus();
+				while (!closed) {
+					try {
+						Thread.sleep(flushed.isEmpty() ? flushIntervalMs : ACK_POLL_MS);
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (flushed.isEmpty()){
+						continue;
+					}
+					writer.get_datawriter_protocol_status(status);
+					long first_unacknowledged=sequenceNumber(status.first_unacknowledged_sample_sequence_number);
+					long now=System.nanoTime();
+					FlushedBatch batch;
+					while ((batch=flushed.peek())!=null) {
+						if (first_unacknowledged>batch.last_sn) {
+							listener.acknowledged(batch.samples, now-batch.flushNanos);
+						} else if (now-batch.flushNanos>TimeUnit.SECONDS.toNanos(ACK_TIMEOUT_SEC)) {
+							System.out.println(String.format("Batch of %d samples not acknowledged within %d sec",
+									batch.samples,ACK_TIMEOUT_SEC));
+						} else {
+							break;
+						}
+						flushed.poll();
+					}
+				}
+			}
+		},"writer-acks");
+		flusher.setDaemon(true);
+		acker.setDaemon(true);
+		flusher.start();
+		acker.start();
+	}
+
+	private static long sequenceNumber(SequenceNumber_t sn){
+		return ((long)sn.high<<32) + (sn.low & 0xffffffffL);
+	}
+
+	// Stops the threads started by flushAsync()
+	public void close(){
+		closed=true;
 	}
 
 }
@@ -0,0 +1,123 @@
+package edu.vanderbilt.kharesp.pubsubcoord.clients;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+
+// Records latency and interarrival time, in nanoseconds, in HDR histograms. Recording a
+// value is wait free and allocates nothing, so the receiving thread is not slowed down.
+// Every pubsubcoord.subscriber.histogram_interval_ms a background thread takes the
+// histograms of the interval and appends them to an HdrHistogram log, tagged "latency"
+// and "interarrival", which HistogramLogProcessor and HdrHistogram's plotter can read.
+class HistogramLatencyRecorder extends LatencyRecorder {
+	private static final long INTERVAL_MS = Long.getLong("pubsubcoord.subscriber.histogram_interval_ms", 1000);
+	private static final int SIGNIFICANT_DIGITS = 3;
+	private static final String LATENCY_TAG = "latency";
+	private static final String INTERARRIVAL_TAG = "interarrival";
+
+	// writes the snapshots of all recorders of the process
+	private static ScheduledExecutorService snapshotter;
+
+	private final Recorder latency = new Recorder(SIGNIFICANT_DIGITS);
+	private final Recorder interarrival = new Recorder(SIGNIFICANT_DIGITS);
+	private final PrintStream logStream;
+	private final HistogramLogWriter log;
+	private final ScheduledFuture<?> snapshots;
+	// histograms of the last interval, recycled by the next one
+	private Histogram latencyInterval;
+	private Histogram interarrivalInterval;
+	// all values recorded, for the summary printed on close()
+	private final Histogram latencyTotal = new Histogram(SIGNIFICANT_DIGITS);
+	private long prev_recv_ts = -1;
+	// samples received before they were sent, by the clocks of the two hosts, recorded as 0
+	private volatile long negative = 0;
+	private boolean closed = false;
+
+	HistogramLatencyRecorder(String logFile) throws Exception {
+		logStream = new PrintStream(new BufferedOutputStream(new FileOutputStream(logFile)), false, "UTF-8");
+		log = new HistogramLogWriter(logStream);
+		log.outputLogFormatVersion();
+		long now = System.currentTimeMillis();
+		log.outputStartTime(now);
+		log.setBaseTime(now);
+		log.outputComment("Latency and interarrival time in nanoseconds");
+		log.outputLegend();
+		snapshots = snapshotter().scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				snapshot();
+			}
+		}, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private static synchronized ScheduledExecutorService snapshotter() {
+		if (snapshotter == null) {
+			snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "histogram-snapshots");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return snapshotter;
+	}
+
+	@Override
+	protected void record(int sample_id, long ts_nanosec, long reception_ts_nanosec) {
+		long value = reception_ts_nanosec - ts_nanosec;
+		if (value < 0) {
+			negative++;
+			value = 0;
+		}
+		latency.recordValue(value);
+		// reception times of record() come from the wall clock, which NTP may step back,
+		// and HdrHistogram throws on negative values
+		if (prev_recv_ts != -1) {
+			interarrival.recordValue(Math.max(0, reception_ts_nanosec - prev_recv_ts));
+		}
+		prev_recv_ts = reception_ts_nanosec;
+	}
+
+	private synchronized void snapshot() {
+		if (closed) {
+			return;
+		}
+		latencyInterval = latency.getIntervalHistogram(latencyInterval);
+		interarrivalInterval = interarrival.getIntervalHistogram(interarrivalInterval);
+		latencyTotal.add(latencyInterval);
+		latencyInterval.setTag(LATENCY_TAG);
+		interarrivalInterval.setTag(INTERARRIVAL_TAG);
+		log.outputIntervalHistogram(latencyInterval);
+		log.outputIntervalHistogram(interarrivalInterval);
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		snapshots.cancel(false);
+		snapshot();
+		closed = true;
+		logStream.close();
+		System.out.println(String.format("Latency(us) p50:%.1f p99:%.1f p99.9:%.1f max:%.1f over %d samples",
+				latencyTotal.getValueAtPercentile(50) / 1e3, latencyTotal.getValueAtPercentile(99) / 1e3,
+				latencyTotal.getValueAtPercentile(99.9) / 1e3, latencyTotal.getMaxValue() / 1e3,
+				latencyTotal.getTotalCount()));
+		if (negative > 0) {
+			System.out.println(String.format("%d samples were received before they were sent: the clocks are skewed",
+					negative));
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package edu.vanderbilt.kharesp.pubsubcoord.clients;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import com.rti.dds.subscription.SampleInfo;
+
+// Fans samples out to a fixed number of worker threads. Each sample goes to the
+// worker chosen by its key, so samples with the same key are handled one at a time,
+// in the order they were dispatched. Each worker has a bounded queue: dispatch()
+// blocks while the worker's queue is full, which pauses the thread taking samples
+// from the reader and pushes back on the writers through the reader's resource limits.
+public class KeyedDispatcher<T> {
+
+	public interface Handler<T> {
+		void handle(T sample, SampleInfo info);
+	}
+
+	private static class Delivery<T> {
+		final T sample;
+		final SampleInfo info;
+
+		Delivery(T sample, SampleInfo info) {
+			this.sample = sample;
+			this.info = info;
+		}
+	}
+
+	private final ArrayList<ArrayBlockingQueue<Delivery<T>>> queues = new ArrayList<ArrayBlockingQueue<Delivery<T>>>();
+	private final ArrayList<Thread> workers = new ArrayList<Thread>();
+	private final Handler<T> handler;
+
+	public KeyedDispatcher(String name, int workerCount, int queueCapacity, Handler<T> handler) {
+		this.handler = handler;
+		for (int i = 0; i < workerCount; i++) {
+			final ArrayBlockingQueue<Delivery<T>> queue = new ArrayBlockingQueue<Delivery<T>>(queueCapacity);
+			queues.add(queue);
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work(queue);
+				}
+			}, String.format("%s-dispatch-%d", name, i));
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	// Queues sample for the worker of key. sample and info must stay valid until handled.
+	// Blocks while that worker's queue is full.
+	public void dispatch(int key, T sample, SampleInfo info) throws InterruptedException {
+		queues.get((key & 0x7fffffff) % queues.size()).put(new Delivery<T>(sample, info));
+	}
+
+	// Number of samples waiting to be handled
+	public int backlog() {
+		int backlog = 0;
+		for (ArrayBlockingQueue<Delivery<T>> queue : queues) {
+			backlog += queue.size();
+		}
+		return backlog;
+	}
+
+	// Stops the workers. Samples still queued are dropped.
+	public void close() {
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+	}
+
+	private void work(ArrayBlockingQueue<Delivery<T>> queue) {
+		while (true) {
+			Delivery<T> delivery;
+			try {
+				delivery = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				handler.handle(delivery.sample, delivery.info);
+			} catch (Exception e) {
+				System.out.println(String.format("Failed to handle sample: %s", e.getMessage()));
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package edu.vanderbilt.kharesp.pubsubcoord.clients;
+
+// Records the latency and interarrival time of each sample received by a subscriber.
+// The pubsubcoord.subscriber.recording property selects how:
+//   csv (default): a formatted line per sample in <path>.csv, as read by the experiment's processing scripts
+//   histogram: HDR histograms, written as interval snapshots to <path>.hlog by a background thread
+//   raw: the ids and timestamps of all samples, written to <path>.bin through a memory mapped file
+// Samples of types stamped by the sender in milliseconds are recorded with record(), those
+// stamped with NanoClock.now() with recordNanos(). Latency is not made positive: samples that
+// seem to arrive before they were sent show the skew left between the clocks of the hosts.
+// record() and recordNanos() are called by one thread at a time.
+public abstract class LatencyRecorder {
+	private static final String RECORDING = System.getProperty("pubsubcoord.subscriber.recording", "csv");
+
+	private volatile int receiveCount = 0;
+
+	// Recorder for the files at path (without extension) of the configured kind
+	public static LatencyRecorder create(String path) throws Exception {
+		if (RECORDING.equals("histogram")) {
+			return new HistogramLatencyRecorder(path + ".hlog");
+		} else if (RECORDING.equals("raw")) {
+			return new RawLatencyRecorder(path + ".bin");
+		} else if (RECORDING.equals("csv")) {
+			return new CsvLatencyRecorder(path + ".csv");
+		}
+		throw new IllegalArgumentException(String.format("Recording:%s not recognized", RECORDING));
+	}
+
+	public final void record(int sample_id, long ts_milisec) {
+		arrived(sample_id, ts_milisec * 1000000L, System.currentTimeMillis() * 1000000L);
+	}
+
+	public final void recordNanos(int sample_id, long ts_nanosec) {
+		arrived(sample_id, ts_nanosec, NanoClock.now());
+	}
+
+	private void arrived(int sample_id, long ts_nanosec, long reception_ts_nanosec) {
+		receiveCount += 1;
+		if (receiveCount % 500 == 0) {
+			System.out.format("Received sample:%d at ts:%d. ts at which sample was sent:%d\n", sample_id,
+					reception_ts_nanosec / 1000000L, ts_nanosec / 1000000L);
+		}
+		record(sample_id, ts_nanosec, reception_ts_nanosec);
+	}
+
+	// Timestamps are in nanoseconds since the epoch
+	protected abstract void record(int sample_id, long ts_nanosec, long reception_ts_nanosec);
+
+	public int received() {
+		return receiveCount;
+	}
+
+	// Writes out what is left to record and closes the files
+	public abstract void close();
+}
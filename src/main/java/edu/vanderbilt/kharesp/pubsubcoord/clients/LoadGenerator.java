@@ -0,0 +1,154 @@
+package edu.vanderbilt.kharesp.pubsubcoord.clients;
+
+import com.rti.dds.publication.Publisher;
+import com.rti.dds.topic.Topic;
+import com.rti.idl.test.DataSample_64B;
+import com.rti.idl.test.DataSample_64BTypeSupport;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.framework.recipes.barriers.DistributedBarrier;
+
+// Publishes on several topics from one process, each topic on its own writer thread
+// paced by a Pacer at its own rate in samples/sec, so that a few JVMs can load a
+// RoutingBroker like many ClientPublishers. The arrival pattern is set by the
+// pubsubcoord.pacer.* properties and batching by the pubsubcoord.writer.* properties.
+// Each topic is registered under zk like a ClientPublisher, so the experiment barriers
+// work unchanged. Only typeName DataSample_64B is supported.
+public class LoadGenerator {
+	private static CuratorFramework client;
+	private static DistributedBarrier barrier;
+	private static DistributedBarrier sub_exited_barrier;
+	private static String hostName;
+	private static String region;
+	private static String pid;
+
+	public static void main(String[] args) {
+		if (args.length < 5) {
+			System.out.println(
+					"Usage: LoadGenerator domainId typeName runId zkConnector topicName:rate:sampleCount [topicName:rate:sampleCount ...]");
+			return;
+		}
+		int domainId = Integer.valueOf(args[0]).intValue();
+		String typeName = args[1];
+		String runId = args[2];
+		String zkConnector = args[3];
+		List<String> topics = new ArrayList<String>();
+		List<Double> rates = new ArrayList<Double>();
+		List<Integer> sampleCounts = new ArrayList<Integer>();
+		for (int i = 4; i < args.length; i++) {
+			String[] load = args[i].split(":");
+			if (load.length != 3) {
+				System.out.println(String.format("Load:%s is not topicName:rate:sampleCount.\nExiting..", args[i]));
+				return;
+			}
+			topics.add(load[0]);
+			rates.add(Double.valueOf(load[1]));
+			sampleCounts.add(Integer.valueOf(load[2]));
+		}
+
+		client = CuratorFrameworkFactory.newClient(zkConnector, new ExponentialBackoffRetry(1000, 3));
+		client.start();
+		try {
+			hostName=InetAddress.getLocalHost().getHostName();
+			region=hostName.substring(hostName.indexOf('i')+1, hostName.indexOf('-'));
+			pid=ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+
+			barrier = new DistributedBarrier(client, String.format("/experiment/%s/barriers/pub", runId));
+			sub_exited_barrier=new DistributedBarrier(client, String.format("/experiment/%s/barriers/finished", runId));
+
+			if (typeName.equals("DataSample_64B")) {
+				publish_DataSample_64B(domainId, topics, rates, sampleCounts, runId);
+			} else {
+				System.out.println(String.format("TypeName:%s not recognized.\nExiting..", typeName));
+				return;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			CloseableUtils.closeQuietly(client);
+		}
+	}
+
+	public static void publish_DataSample_64B(int domainId, List<String> topics, List<Double> rates,
+			List<Integer> sampleCounts, String runId) {
+		DefaultParticipant participant = null;
+		List<String> client_paths = new ArrayList<String>();
+		try {
+			participant = new DefaultParticipant(domainId);
+			participant.registerType(DataSample_64BTypeSupport.get_instance());
+			Publisher publisher = participant.get_default_publisher();
+			List<Thread> senders = new ArrayList<Thread>();
+			for (int i = 0; i < topics.size(); i++) {
+				String topicName = topics.get(i);
+				Topic topic = participant.create_topic(topicName, DataSample_64BTypeSupport.get_instance());
+				GenericDataWriter<DataSample_64B> datawriter = ClientPublisher.createWriter(publisher, topic);
+				senders.add(sender(topicName, datawriter, Pacer.configured(rates.get(i)), sampleCounts.get(i)));
+				String client_path = String.format("/experiment/%s/pub/region_%s/%s/%s_%s_%s", runId, region,
+						hostName, topicName, hostName, pid);
+				client.create().forPath(client_path, new byte[0]);
+				client_paths.add(client_path);
+			}
+			//wait before all publishers have joined to begin publishing
+			barrier.waitOnBarrier();
+			//wait for 30 sec for discovery to finish before publishing
+			System.out.println("publisher will sleep for 30 sec until discovery finishes");
+			Thread.sleep(30000);
+			System.out.println("Publisher will start sending data");
+			for (Thread sender : senders) {
+				sender.start();
+			}
+			for (Thread sender : senders) {
+				sender.join();
+			}
+			System.out.println("Publisher sent all samples");
+			//Don't exit until all subscribers have exited
+			sub_exited_barrier.waitOnBarrier();
+			System.out.println("All subscribers have exited. Exiting..");
+			for (String client_path : client_paths) {
+				client.delete().forPath(client_path);
+			}
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+		} finally {
+			participant.shutdown();
+		}
+	}
+
+	// Thread writing sampleCount samples of topicName as paced by pacer
+	static Thread sender(final String topicName, final GenericDataWriter<DataSample_64B> datawriter,
+			final Pacer pacer, final int sampleCount) {
+		return new Thread(new Runnable() {
+			@Override
+			public void run() {
+				DataSample_64B instance = new DataSample_64B();
+				long start = System.nanoTime();
+				pacer.start();
+				int count = 0;
+				for (; count < sampleCount; ++count) {
+					try {
+						pacer.await();
+					} catch (InterruptedException ix) {
+						System.err.println("INTERRUPTED");
+						break;
+					}
+					instance.sample_id = count;
+					instance.ts_milisec = System.currentTimeMillis();
+					datawriter.write(instance);
+				}
+				ClientPublisher.closeWriter(datawriter);
+				double elapsed = (System.nanoTime() - start) / 1e9;
+				System.out.println(String.format(
+						"Topic:%s sent %d samples in %.3f sec (%.1f samples/sec). Send slots missed:%d, max send delay:%.3f ms",
+						topicName, count, elapsed, count / elapsed, pacer.missed(), pacer.maxLateNanos() / 1e6));
+			}
+		}, "writer-" + topicName);
+	}
+}
@@ -0,0 +1,107 @@
+package edu.vanderbilt.kharesp.pubsubcoord.clients;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.curator.framework.CuratorFramework;
+
+// Wall clock time in nanoseconds since the epoch. The wall clock is read once and advanced
+// by System.nanoTime(), so timestamps have nanosecond resolution and are not affected by NTP
+// steps during a run. As System.currentTimeMillis() only has millisecond resolution, the
+// starting point is taken where it ticks over to the next millisecond, which is known to
+// within the few microseconds it takes to see the tick, instead of anywhere within a
+// millisecond. This matters because the offsets PingPong measures in its own process are
+// applied to clocks started by other processes.
+// now() is corrected by the offset of this host to the reference host, which PingPong
+// stores in zk and load() reads, so that now() on different hosts can be compared.
+// The clocks drift apart after the offset is measured, so load() refuses offsets measured
+// more than pubsubcoord.clock.max_age_ms ago: run PingPong again before the experiment.
+public final class NanoClock {
+	private static final String OFFSET_PATH = "/experiment/clock/%s";
+	// Oldest offset load() accepts
+	private static final long MAX_AGE_MS = Long.getLong("pubsubcoord.clock.max_age_ms", 600000);
+
+	// number of millisecond ticks the starting point is taken from
+	private static final int CALIBRATION_TICKS = 5;
+
+	// wall clock time minus System.nanoTime()
+	private static final long BASE_NANOS = calibrate();
+	private static volatile long offsetNanos = 0;
+	// most the offset can be off by when it was measured
+	private static volatile long errorBoundNanos = 0;
+
+	private NanoClock() {
+	}
+
+	// Time on this host's clock
+	public static long local() {
+		return BASE_NANOS + System.nanoTime();
+	}
+
+	// Spins until System.currentTimeMillis() ticks and pairs the new millisecond with
+	// System.nanoTime() read right after. Seeing a tick late only makes the difference
+	// smaller, so the largest one over a few ticks is the closest.
+	private static long calibrate() {
+		long base = Long.MIN_VALUE;
+		for (int i = 0; i < CALIBRATION_TICKS; i++) {
+			long start = System.currentTimeMillis();
+			long millis;
+			while ((millis = System.currentTimeMillis()) == start) {
+			}
+			base = Math.max(base, millis * 1000000L - System.nanoTime());
+		}
+		return base;
+	}
+
+	// Time on the reference host's clock, as estimated from this host's clock
+	public static long now() {
+		return local() + offsetNanos;
+	}
+
+	public static long offset() {
+		return offsetNanos;
+	}
+
+	public static long errorBound() {
+		return errorBoundNanos;
+	}
+
+	public static void setOffset(long offset, long errorBound) {
+		offsetNanos = offset;
+		errorBoundNanos = errorBound;
+	}
+
+	// Sets the offset to the one stored for host, if any and measured within MAX_AGE_MS.
+	// Returns whether it was set. The age is taken by the wall clock of host, which stored
+	// the offset, so it does not depend on the offset itself.
+	public static boolean load(CuratorFramework client, String host) throws Exception {
+		String path = String.format(OFFSET_PATH, host);
+		if (client.checkExists().forPath(path) == null) {
+			return false;
+		}
+		String[] fields = new String(client.getData().forPath(path), StandardCharsets.UTF_8).split(" ");
+		if (fields.length != 3) {
+			System.out.println(String.format("Ignoring clock offset of host:%s without its measurement time", host));
+			return false;
+		}
+		long ageMillis = System.currentTimeMillis() - Long.parseLong(fields[2]);
+		if (ageMillis < 0 || ageMillis > MAX_AGE_MS) {
+			System.out.println(String.format("Ignoring clock offset of host:%s measured %d sec ago, run PingPong again",
+					host, ageMillis / 1000));
+			return false;
+		}
+		setOffset(Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+		return true;
+	}
+
+	// Stores offset and its errorBound for host, as measured now
+	public static void store(CuratorFramework client, String host, long offset, long errorBound) throws Exception {
+		String path = String.format(OFFSET_PATH, host);
+		byte[] data = String.format("%d %d %d", offset, errorBound, System.currentTimeMillis())
+				.getBytes(StandardCharsets.UTF_8);
+		if (client.checkExists().forPath(path) == null) {
+			client.create().creatingParentsIfNeeded().forPath(path, data);
+		} else {
+			client.setData().forPath(path, data);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package edu.vanderbilt.kharesp.pubsubcoord.clients;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+// Paces sends at a target rate in samples/sec with nanosecond precision. Send times are
+// scheduled on an absolute timeline from start(), so the time spent writing does not
+// slow down the rate. The sending thread parks until shortly before its send time and
+// spins for the rest, since parking alone overshoots by tens of microseconds.
+// A sender that falls behind (e.g. a slow write or a GC pause) catches up by sending back
+// to back the samples due in the last pubsubcoord.pacer.max_lag_us (or the last burst, if
+// longer); the send slots due before that are skipped and counted in missed().
+// Not thread safe: each sending thread uses its own Pacer.
+public final class Pacer {
+	// Time before a send time at which the sending thread stops parking and spins
+	private static final long SPIN_NANOS = Long.getLong("pubsubcoord.pacer.spin_ns", 100000);
+	private static final String ARRIVAL = System.getProperty("pubsubcoord.pacer.arrival", "constant");
+	private static final int BURST = Integer.getInteger("pubsubcoord.pacer.burst", 1);
+	private static final long MAX_LAG_NANOS = Long.getLong("pubsubcoord.pacer.max_lag_us", 10000) * 1000;
+
+	public enum Arrival {
+		// evenly spaced sends
+		CONSTANT,
+		// exponentially distributed gaps between sends, as for independent senders
+		POISSON,
+		// bursts of burst samples back to back, at the same mean rate
+		BURSTY
+	}
+
+	private final double meanIntervalNanos;
+	private final Arrival arrival;
+	private final int burst;
+	// most time a sender can catch up on
+	private final long maxLagNanos;
+	private final Random random = new Random();
+
+	private long next;
+	// part of a nanosecond carried over between intervals, so that rounding does not drift the rate
+	private double carry = 0;
+	private int sentInBurst = 0;
+	private long missed = 0;
+	private long maxLateNanos = 0;
+
+	// rate<=0 does not pace: await() returns at once
+	public Pacer(double rate, Arrival arrival, int burst) {
+		if (burst < 1) {
+			throw new IllegalArgumentException("burst must be at least 1");
+		}
+		this.meanIntervalNanos = rate > 0 ? 1e9 / rate : 0;
+		this.arrival = arrival;
+		this.burst = burst;
+		this.maxLagNanos = Math.max((long) (burst * meanIntervalNanos), MAX_LAG_NANOS);
+	}
+
+	// Pacer for rate with the arrival pattern and burst size set by the
+	// pubsubcoord.pacer.arrival and pubsubcoord.pacer.burst properties
+	public static Pacer configured(double rate) {
+		return new Pacer(rate, Arrival.valueOf(ARRIVAL.toUpperCase()), BURST);
+	}
+
+	// Starts the schedule: the first send is due now
+	public void start() {
+		next = System.nanoTime();
+		sentInBurst = 0;
+	}
+
+	// Waits until the next send is due and returns the time (System.nanoTime()) it was due at
+	public long await() throws InterruptedException {
+		long now = System.nanoTime();
+		if (meanIntervalNanos == 0) {
+			return now;
+		}
+		if (now - next > maxLagNanos) {
+			long behind = now - maxLagNanos - next;
+			missed += (long) (behind / meanIntervalNanos);
+			next += behind;
+		}
+		long due = next;
+		long remaining;
+		while ((remaining = due - System.nanoTime()) > 0) {
+			if (remaining > SPIN_NANOS) {
+				LockSupport.parkNanos(remaining - SPIN_NANOS);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		}
+		long late = System.nanoTime() - due;
+		if (late > maxLateNanos) {
+			maxLateNanos = late;
+		}
+		next += interval();
+		return due;
+	}
+
+	// Send slots skipped because the sender fell behind
+	public long missed() {
+		return missed;
+	}
+
+	// Longest time a send was made after it was due
+	public long maxLateNanos() {
+		return maxLateNanos;
+	}
+
+	private long interval() {
+		double interval;
+		switch (arrival) {
+		case POISSON:
+			interval = -Math.log(1 - random.nextDouble()) * meanIntervalNanos;
+			break;
+		case BURSTY:
+			if (++sentInBurst < burst) {
+				return 0;
+			}
+			sentInBurst = 0;
+			interval = burst * meanIntervalNanos;
+			break;
+		default:
+			interval = meanIntervalNanos;
+		}
+		interval += carry;
+		long nanos = (long) interval;
+		carry = interval - nanos;
+		return nanos;
+	}
+}
@@ -0,0 +1,178 @@
+package edu.vanderbilt.kharesp.pubsubcoord.clients;
+
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rti.dds.publication.Publisher;
+import com.rti.dds.subscription.SampleInfo;
+import com.rti.dds.subscription.Subscriber;
+import com.rti.dds.topic.Topic;
+import com.rti.idl.test.DataSample_64B_ns;
+import com.rti.idl.test.DataSample_64B_nsTypeSupport;
+
+import org.HdrHistogram.Histogram;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.utils.CloseableUtils;
+
+// Measures round trip times and the clock skew between two hosts.
+// echo: echoes each sample of topicName back on topicName_echo, stamped with the times it
+// was received and sent. Its host's clock is the reference clock.
+// ping: sends sampleCount samples on topicName at rate samples/sec and receives their
+// echoes, which gives the round trip time through the brokers between the two hosts and,
+// with a SkewEstimator, the offset of the reference clock to this host's clock. With a
+// zkConnector, the offset is stored for this host, where ClientPublisher and
+// ClientSubscriber load it so that NanoClock.now() reads the reference clock.
+// Any number of hosts can ping one echo at the same time.
+public class PingPong {
+	// Time given to discovery before sending pings
+	private static final long DISCOVERY_MS = 10000;
+	// Time to wait for the echoes of the last pings
+	private static final long ECHO_TIMEOUT_MS = 5000;
+
+	public static void main(String[] args) {
+		if (args.length < 3 || !(args[0].equals("echo") || args[0].equals("ping")) ||
+				(args[0].equals("ping") && args.length < 5)) {
+			System.out.println("Usage: PingPong echo domainId topicName\n" +
+					"       PingPong ping domainId topicName sampleCount rate [zkConnector]");
+			return;
+		}
+		int domainId = Integer.valueOf(args[1]).intValue();
+		String topicName = args[2];
+		if (args[0].equals("echo")) {
+			echo(domainId, topicName);
+		} else {
+			ping(domainId, topicName, Integer.valueOf(args[3]).intValue(), Double.valueOf(args[4]),
+					args.length > 5 ? args[5] : null);
+		}
+	}
+
+	public static void echo(int domainId, String topicName) {
+		DefaultParticipant participant = null;
+		try {
+			participant = new DefaultParticipant(domainId);
+			participant.registerType(DataSample_64B_nsTypeSupport.get_instance());
+			Topic pingTopic = participant.create_topic(topicName, DataSample_64B_nsTypeSupport.get_instance());
+			Topic echoTopic = participant.create_topic(topicName + "_echo",
+					DataSample_64B_nsTypeSupport.get_instance());
+			final GenericDataWriter<DataSample_64B_ns> datawriter = new GenericDataWriter<DataSample_64B_ns>(
+					participant.get_default_publisher(), echoTopic);
+			final AtomicInteger echoed = new AtomicInteger();
+			//echoes are written on the listener thread, which keeps the time the sample is held short
+			GenericDataReader<DataSample_64B_ns> datareader = new GenericDataReader<DataSample_64B_ns>(
+					participant.get_default_subscriber(), pingTopic, DataSample_64B_nsTypeSupport.get_instance(),
+					null, GenericDataReader.DeliveryMode.LOANED) {
+				private DataSample_64B_ns echo = new DataSample_64B_ns();
+
+				@Override
+				public void process(DataSample_64B_ns sample, SampleInfo info) {
+					long recv_ts = NanoClock.local();
+					echo.copy_from(sample);
+					echo.echo_recv_ts_nanosec = recv_ts;
+					echo.echo_send_ts_nanosec = NanoClock.local();
+					datawriter.write(echo);
+					echoed.incrementAndGet();
+				}
+			};
+			datareader.receive();
+			System.out.println(String.format("Echoing samples of topic:%s", topicName));
+			while (true) {
+				Thread.sleep(10000);
+				System.out.println(String.format("Echoed samples:%d", echoed.get()));
+			}
+		} catch (InterruptedException e) {
+			System.out.println("Interrupted");
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+		} finally {
+			participant.shutdown();
+		}
+	}
+
+	public static void ping(int domainId, String topicName, int sampleCount, double rate, String zkConnector) {
+		DefaultParticipant participant = null;
+		try {
+			participant = new DefaultParticipant(domainId);
+			participant.registerType(DataSample_64B_nsTypeSupport.get_instance());
+			Topic pingTopic = participant.create_topic(topicName, DataSample_64B_nsTypeSupport.get_instance());
+			Topic echoTopic = participant.create_topic(topicName + "_echo",
+					DataSample_64B_nsTypeSupport.get_instance());
+			Publisher publisher = participant.get_default_publisher();
+			Subscriber subscriber = participant.get_default_subscriber();
+			GenericDataWriter<DataSample_64B_ns> datawriter = new GenericDataWriter<DataSample_64B_ns>(publisher,
+					pingTopic);
+			//tells this host's echoes apart from those of other hosts pinging the same echo
+			final int source_id = new Random().nextInt();
+			final SkewEstimator estimator = new SkewEstimator();
+			final AtomicInteger received = new AtomicInteger();
+			GenericDataReader<DataSample_64B_ns> datareader = new GenericDataReader<DataSample_64B_ns>(subscriber,
+					echoTopic, DataSample_64B_nsTypeSupport.get_instance(), null,
+					GenericDataReader.DeliveryMode.LOANED) {
+				@Override
+				public void process(DataSample_64B_ns sample, SampleInfo info) {
+					long recv_ts = NanoClock.local();
+					if (sample.source_id != source_id) {
+						return;
+					}
+					synchronized (estimator) {
+						estimator.add(sample.ts_nanosec, sample.echo_recv_ts_nanosec, sample.echo_send_ts_nanosec,
+								recv_ts);
+					}
+					received.incrementAndGet();
+				}
+			};
+			datareader.receive();
+			System.out.println(String.format("ping will sleep for %d sec until discovery finishes", DISCOVERY_MS / 1000));
+			Thread.sleep(DISCOVERY_MS);
+
+			DataSample_64B_ns instance = new DataSample_64B_ns();
+			instance.source_id = source_id;
+			Pacer pacer = new Pacer(rate, Pacer.Arrival.CONSTANT, 1);
+			pacer.start();
+			for (int count = 0; count < sampleCount; ++count) {
+				pacer.await();
+				instance.sample_id = count;
+				instance.ts_nanosec = NanoClock.local();
+				datawriter.write(instance);
+			}
+			long deadline = System.currentTimeMillis() + ECHO_TIMEOUT_MS;
+			while (received.get() < sampleCount && System.currentTimeMillis() < deadline) {
+				Thread.sleep(100);
+			}
+			datareader.close();
+
+			synchronized (estimator) {
+				if (estimator.exchanges() == 0) {
+					System.out.println("No echoes received");
+					return;
+				}
+				Histogram rtt = estimator.roundTrips();
+				System.out.println(String.format(
+						"Echoes:%d of %d. Round trip(us) min:%.1f p50:%.1f p99:%.1f p99.9:%.1f max:%.1f",
+						estimator.exchanges(), sampleCount, rtt.getMinValue() / 1e3, rtt.getValueAtPercentile(50) / 1e3,
+						rtt.getValueAtPercentile(99) / 1e3, rtt.getValueAtPercentile(99.9) / 1e3,
+						rtt.getMaxValue() / 1e3));
+				System.out.println(String.format("Reference clock offset:%d ns, within %d ns", estimator.offset(),
+						estimator.errorBound()));
+				if (zkConnector != null) {
+					String hostName = InetAddress.getLocalHost().getHostName();
+					CuratorFramework client = CuratorFrameworkFactory.newClient(zkConnector,
+							new ExponentialBackoffRetry(1000, 3));
+					client.start();
+					try {
+						NanoClock.store(client, hostName, estimator.offset(), estimator.errorBound());
+						System.out.println(String.format("Stored clock offset of host:%s", hostName));
+					} finally {
+						CloseableUtils.closeQuietly(client);
+					}
+				}
+			}
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+		} finally {
+			participant.shutdown();
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package edu.vanderbilt.kharesp.pubsubcoord.clients;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Logs the id, send and reception timestamps of every sample for offline processing.
+// The log is written through a memory mapped file, mapped pubsubcoord.subscriber.raw_region_mb
+// at a time, so recording a sample is a few stores into memory and the page cache is
+// written out by the kernel. The log is a header of RECORD_SIZE bytes
+//   int MAGIC, int VERSION, int RECORD_SIZE, int 0, int 0
+// followed by records of
+//   int sample_id, long ts_nanosec, long reception_ts_nanosec
+// all big endian, as read by java.io.DataInputStream or numpy's '>i4,>i8,>i8'.
+class RawLatencyRecorder extends LatencyRecorder {
+	static final int MAGIC = 0x50534c52;
+	// 2: timestamps in nanoseconds
+	static final int VERSION = 2;
+	static final int RECORD_SIZE = 20;
+	// a whole number of records, so that no record spans two regions
+	private static final long REGION_SIZE = (Long.getLong("pubsubcoord.subscriber.raw_region_mb", 64) << 20)
+			/ RECORD_SIZE * RECORD_SIZE;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private MappedByteBuffer region;
+	// position in the file of region
+	private long regionStart = 0;
+	private boolean closed = false;
+
+	RawLatencyRecorder(String logFile) throws IOException {
+		file = new RandomAccessFile(logFile, "rw");
+		channel = file.getChannel();
+		map(0);
+		region.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0).putInt(0);
+	}
+
+	// synchronized with close(), as writing to a region after the file is truncated crashes the JVM
+	@Override
+	protected synchronized void record(int sample_id, long ts_nanosec, long reception_ts_nanosec) {
+		if (closed) {
+			return;
+		}
+		if (!region.hasRemaining()) {
+			try {
+				map(regionStart + region.capacity());
+			} catch (IOException e) {
+				System.out.println(e.getMessage());
+				return;
+			}
+		}
+		region.putInt(sample_id).putLong(ts_nanosec).putLong(reception_ts_nanosec);
+	}
+
+	private void map(long start) throws IOException {
+		regionStart = start;
+		region = channel.map(FileChannel.MapMode.READ_WRITE, start, REGION_SIZE);
+		region.order(ByteOrder.BIG_ENDIAN);
+	}
+
+	// Closes the log, truncating the unused end of the last region
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			region.force();
+			channel.truncate(regionStart + region.position());
+			file.close();
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package edu.vanderbilt.kharesp.pubsubcoord.clients;
+
+import org.HdrHistogram.Histogram;
+
+// Estimates the offset of a remote clock to the local one from ping-pong exchanges, as NTP
+// does: a ping sent at t1 (local clock) is received at t2 and echoed at t3 (remote clock)
+// and the echo is received at t4 (local clock). If both directions take the same time,
+// the remote clock is ahead by ((t2 - t1) + (t3 - t4)) / 2, give or take half the round
+// trip time. Exchanges delayed by queuing are the least symmetric, so the offset of the
+// exchange with the shortest round trip is kept.
+// Not thread safe.
+public class SkewEstimator {
+	private final Histogram rtt = new Histogram(3);
+	private long minRttNanos = Long.MAX_VALUE;
+	private long offsetNanos = 0;
+
+	public void add(long t1, long t2, long t3, long t4) {
+		long roundTrip = (t4 - t1) - (t3 - t2);
+		if (roundTrip < 0) {
+			return;
+		}
+		rtt.recordValue(roundTrip);
+		if (roundTrip < minRttNanos) {
+			minRttNanos = roundTrip;
+			offsetNanos = ((t2 - t1) + (t3 - t4)) / 2;
+		}
+	}
+
+	// Time to add to the local clock to get the remote one
+	public long offset() {
+		return offsetNanos;
+	}
+
+	// Most the offset can be off by
+	public long errorBound() {
+		return minRttNanos / 2;
+	}
+
+	// Round trip times, excluding the time the remote side held the pings
+	public Histogram roundTrips() {
+		return rtt;
+	}
+
+	public long exchanges() {
+		return rtt.getTotalCount();
+	}
+}